@@ -0,0 +1,408 @@
+package org.stjude.compbio.rnapeg;
+// binary annotation snapshot (FILE.refFlat.rnapeg), compiled once from
+// a refFlat file and then memory-mapped by later runs, which skip
+// refFlat parsing, Transcript construction and IntronCache setup.
+//
+// Layout (big-endian; sections are 8-byte aligned):
+//
+//   transcript records, in IntronCache (transcript name) order
+//   for each annotated contig: sorted junction keys (long), offsets
+//     (int, one more than keys) and transcript indexes (int), as in
+//     IntronCache.ContigIntrons
+//   transcript record positions (long, one more than transcripts)
+//   contig directory, in contig ID order: name, key count (-1 if no
+//     introns), transcript index count, section position
+//   trailer: directory position (long), record position table
+//     position (long), transcript count (int), contig count (int),
+//     refFlat size and modification time (long), -t2g file size and
+//     modification time (long, -1 if none), strand filter (int, 0 if
+//     none), version (int), magic (int)
+//
+// The snapshot is current if the refFlat (and -t2g) file size and
+// modification time, and the strand filter, match the trailer;
+// otherwise it's recompiled.  Transcript records are decoded into
+// UCSCRefGene objects only when a junction matches them.
+//
+// Usage: AnnotationSnapshot [-strand +|-] [-t2g FILE] FILE ...
+// (compiles snapshots), or SplicedReadReporter -refflat-snapshot to
+// compile one on first use.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class AnnotationSnapshot {
+  public static final String SUFFIX = ".rnapeg";
+  private static final int MAGIC = 0x52504741;
+  private static final int VERSION = 1;
+  private static final int TRAILER_SIZE = 68;
+
+  private final File file;
+  private final ByteBuffer buffer;
+  private final LongBuffer record_positions;
+  private final AtomicReferenceArray<UCSCRefGene> transcripts;
+  // decoded on first use
+  private final String strand_filter;
+
+  private AnnotationSnapshot (File file) throws IOException {
+    this.file = file;
+    FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+    try {
+      if (fc.size() > Integer.MAX_VALUE) throw new IOException("annotation snapshot too large: " + file);
+      buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+    } finally {
+      fc.close();
+      // mapping remains valid
+    }
+    int trailer = buffer.limit() - TRAILER_SIZE;
+    if (trailer < 0 ||
+	buffer.getInt(trailer + 64) != MAGIC ||
+	buffer.getInt(trailer + 60) != VERSION) {
+      throw new IOException("not a current annotation snapshot: " + file);
+    }
+    int count = buffer.getInt(trailer + 16);
+    record_positions = slice(buffer.getLong(trailer + 8), 8L * (count + 1)).asLongBuffer();
+    transcripts = new AtomicReferenceArray<UCSCRefGene>(count);
+    int strand = buffer.getInt(trailer + 56);
+    strand_filter = strand == 0 ? null : Character.toString((char) strand);
+  }
+
+  public static IntronCache load (File file) throws IOException {
+    long start = System.currentTimeMillis();
+    AnnotationSnapshot snapshot = new AnnotationSnapshot(file);
+    ByteBuffer buffer = snapshot.buffer;
+    int trailer = buffer.limit() - TRAILER_SIZE;
+    long directory = buffer.getLong(trailer);
+    int contig_count = buffer.getInt(trailer + 20);
+
+    byte[] raw = new byte[(int) (trailer - directory)];
+    ByteBuffer bb = buffer.duplicate();
+    ((Buffer) bb).position((int) directory);
+    // Buffer: ByteBuffer.position(int) doesn't exist in Java 8
+    bb.get(raw);
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(raw));
+
+    ContigDictionary contigs = new ContigDictionary();
+    ArrayList<IntronCache.ContigIntrons> cache = new ArrayList<IntronCache.ContigIntrons>();
+    int total = 0;
+    for (int id = 0; id < contig_count; id++) {
+      String name = dis.readUTF();
+      int key_count = dis.readInt();
+      int transcript_count = dis.readInt();
+      long pos = dis.readLong();
+      if (contigs.add(name) != id) throw new IOException("duplicate contig " + name + " in " + file);
+      if (key_count < 0) {
+	cache.add(null);
+	continue;
+      }
+      LongBuffer keys = snapshot.slice(pos, 8L * key_count).asLongBuffer();
+      pos += 8L * key_count;
+      IntBuffer offsets = snapshot.slice(pos, 4L * (key_count + 1)).asIntBuffer();
+      pos += 4L * (key_count + 1);
+      IntBuffer indexes = snapshot.slice(pos, 4L * transcript_count).asIntBuffer();
+      cache.add(new IntronCache.ContigIntrons(keys, offsets, indexes));
+      total += key_count;
+    }
+
+    System.err.println("annotation snapshot " + file + ": transcripts=" + snapshot.get_transcript_count() + " introns=" + total);  // debug
+    System.err.println("annotation snapshot load: " + (System.currentTimeMillis() - start) + " ms");  // debug
+    return new IntronCache(snapshot, contigs, cache);
+  }
+
+  private ByteBuffer slice (long pos, long length) throws IOException {
+    if (pos < 0 || pos + length > buffer.limit()) throw new IOException("corrupt annotation snapshot " + file);
+    ByteBuffer bb = buffer.duplicate();
+    ((Buffer) bb).position((int) pos);
+    ((Buffer) bb).limit((int) (pos + length));
+    return bb.slice();
+  }
+
+  public File get_file() {
+    return file;
+  }
+
+  public String get_strand_filter() {
+    return strand_filter;
+  }
+
+  public int get_transcript_count() {
+    return transcripts.length();
+  }
+
+  public UCSCRefGene get_transcript (int i) {
+    UCSCRefGene rg = transcripts.get(i);
+    if (rg == null) {
+      int pos = (int) record_positions.get(i);
+      byte[] raw = new byte[(int) record_positions.get(i + 1) - pos];
+      for (int j = 0; j < raw.length; j++) {
+	raw[j] = buffer.get(pos + j);
+      }
+      // absolute gets: the buffer is shared between threads
+      try {
+	rg = read_transcript(new DataInputStream(new ByteArrayInputStream(raw)));
+      } catch (IOException e) {
+	throw new UncheckedIOException("corrupt annotation snapshot " + file, e);
+      }
+      if (!transcripts.compareAndSet(i, null, rg)) rg = transcripts.get(i);
+      // decoded concurrently by another thread
+    }
+    return rg;
+  }
+
+  public static File get_snapshot_file (String refflat) {
+    return new File(refflat + SUFFIX);
+  }
+
+  public static boolean is_current (File source, File snapshot, String strand_filter, File t2g) {
+    //
+    // whether the snapshot was compiled from the source (and options)
+    // as they are now
+    //
+    if (!snapshot.exists()) return false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+      try {
+	if (raf.length() < TRAILER_SIZE) return false;
+	raf.seek(raf.length() - TRAILER_SIZE + 24);
+	long size = raf.readLong();
+	long mtime = raf.readLong();
+	long t2g_size = raf.readLong();
+	long t2g_mtime = raf.readLong();
+	int strand = raf.readInt();
+	int version = raf.readInt();
+	int magic = raf.readInt();
+	return magic == MAGIC && version == VERSION &&
+	  size == source.length() && mtime == source.lastModified() &&
+	  t2g_size == (t2g == null ? -1 : t2g.length()) &&
+	  t2g_mtime == (t2g == null ? -1 : t2g.lastModified()) &&
+	  strand == get_strand_code(strand_filter);
+      } finally {
+	raf.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static int get_strand_code (String strand_filter) {
+    return strand_filter == null ? 0 : strand_filter.charAt(0);
+  }
+
+  public static IntronCache open (String refflat, String strand_filter, String t2g) throws IOException {
+    //
+    // automatic mode: load a refFlat file via its snapshot, compiling
+    // the snapshot if it's missing or out of date.  If it can't be
+    // written (e.g. read-only directory), the refFlat is used as is.
+    //
+    File source = new File(refflat);
+    File t2g_file = t2g == null ? null : new File(t2g);
+    File snapshot = get_snapshot_file(refflat);
+    if (is_current(source, snapshot, strand_filter, t2g_file)) {
+      try {
+	return load(snapshot);
+      } catch (IOException e) {
+	System.err.println("WARNING: can't read annotation snapshot " + snapshot + ": " + e);  // debug
+      }
+    }
+
+    IntronCache ic = parse(refflat, strand_filter, t2g);
+    try {
+      write(ic, source, t2g_file, snapshot);
+    } catch (IOException e) {
+      System.err.println("WARNING: can't write annotation snapshot " + snapshot + ": " + e);  // debug
+    }
+    return ic;
+  }
+
+  public static IntronCache parse (String refflat, String strand_filter, String t2g) throws IOException {
+    //
+    // IntronCache from refFlat text
+    //
+    UCSCRefGeneReader r = new UCSCRefGeneReader(refflat, true);
+    if (t2g != null) r.set_transcript2gene(t2g);
+    return strand_filter == null ? new IntronCache(r) : new IntronCache(r, strand_filter);
+  }
+
+  public static void write (IntronCache ic, File source, File t2g, File snapshot) throws IOException {
+    //
+    // write to a temporary file which is then renamed, so concurrent
+    // runs never see a partial snapshot
+    //
+    System.err.print("writing annotation snapshot " + snapshot + "...");  // debug
+    long source_size = source.length();
+    long source_mtime = source.lastModified();
+    File tmp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getAbsoluteFile().getParentFile());
+
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+      try {
+	int count = ic.get_gene_count();
+	long[] record_positions = new long[count + 1];
+	for (int i = 0; i < count; i++) {
+	  record_positions[i] = out.size();
+	  write_transcript(out, ic.get_gene(i));
+	}
+	record_positions[count] = out.size();
+	pad(out);
+
+	int contig_count = ic.contigs.size();
+	long[] section_positions = new long[contig_count];
+	for (int id = 0; id < contig_count; id++) {
+	  IntronCache.ContigIntrons introns = id < ic.cache.size() ? ic.cache.get(id) : null;
+	  if (introns == null) continue;
+	  section_positions[id] = out.size();
+	  for (int i = 0; i < introns.keys.limit(); i++) {
+	    out.writeLong(introns.keys.get(i));
+	  }
+	  for (int i = 0; i < introns.offsets.limit(); i++) {
+	    out.writeInt(introns.offsets.get(i));
+	  }
+	  for (int i = 0; i < introns.transcripts.limit(); i++) {
+	    out.writeInt(introns.transcripts.get(i));
+	  }
+	  pad(out);
+	}
+
+	long index_position = out.size();
+	for (long pos : record_positions) {
+	  out.writeLong(pos);
+	}
+
+	long directory_position = out.size();
+	for (int id = 0; id < contig_count; id++) {
+	  IntronCache.ContigIntrons introns = id < ic.cache.size() ? ic.cache.get(id) : null;
+	  out.writeUTF(ic.contigs.get_name(id));
+	  out.writeInt(introns == null ? -1 : introns.keys.limit());
+	  out.writeInt(introns == null ? 0 : introns.transcripts.limit());
+	  out.writeLong(section_positions[id]);
+	}
+
+	out.writeLong(directory_position);
+	out.writeLong(index_position);
+	out.writeInt(count);
+	out.writeInt(contig_count);
+	out.writeLong(source_size);
+	out.writeLong(source_mtime);
+	out.writeLong(t2g == null ? -1 : t2g.length());
+	out.writeLong(t2g == null ? -1 : t2g.lastModified());
+	out.writeInt(get_strand_code(ic.get_strand_filter()));
+	out.writeInt(VERSION);
+	out.writeInt(MAGIC);
+	if (out.size() == Integer.MAX_VALUE) throw new IOException("annotation too large for snapshot");
+	// DataOutputStream.size() stops there
+      } finally {
+	out.close();
+      }
+
+      if (!tmp.renameTo(snapshot)) throw new IOException("can't rename " + tmp + " to " + snapshot);
+    } finally {
+      tmp.delete();
+      // if not renamed
+    }
+    System.err.println("done");  // debug
+  }
+
+  private static void pad (DataOutputStream out) throws IOException {
+    while (out.size() % 8 != 0) {
+      out.writeByte(0);
+    }
+  }
+
+  private static void write_transcript (DataOutputStream out, UCSCRefGene rg) throws IOException {
+    write_string(out, rg.name);
+    write_string(out, rg.chrom);
+    write_string(out, rg.strand);
+    write_string(out, rg.name2);
+    write_string(out, rg.cdsStartStat);
+    write_string(out, rg.cdsEndStat);
+    out.writeInt(rg.bin);
+    out.writeInt(rg.txStart);
+    out.writeInt(rg.txEnd);
+    out.writeInt(rg.cdsStart);
+    out.writeInt(rg.cdsEnd);
+    out.writeInt(rg.exonCount);
+    out.writeInt(rg.score);
+    write_ints(out, rg.exonStarts);
+    write_ints(out, rg.exonEnds);
+    write_ints(out, rg.exonFrames);
+  }
+
+  private static UCSCRefGene read_transcript (DataInputStream in) throws IOException {
+    UCSCRefGene rg = new UCSCRefGene();
+    rg.name = read_string(in);
+    rg.chrom = read_string(in);
+    rg.strand = read_string(in);
+    rg.name2 = read_string(in);
+    rg.cdsStartStat = read_string(in);
+    rg.cdsEndStat = read_string(in);
+    rg.bin = in.readInt();
+    rg.txStart = in.readInt();
+    rg.txEnd = in.readInt();
+    rg.cdsStart = in.readInt();
+    rg.cdsEnd = in.readInt();
+    rg.exonCount = in.readInt();
+    rg.score = in.readInt();
+    rg.exonStarts = read_ints(in);
+    rg.exonEnds = read_ints(in);
+    rg.exonFrames = read_ints(in);
+    return rg;
+  }
+
+  private static void write_string (DataOutputStream out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) out.writeUTF(s);
+  }
+
+  private static String read_string (DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void write_ints (DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values == null ? -1 : values.length);
+    if (values != null) {
+      for (int v : values) {
+	out.writeInt(v);
+      }
+    }
+  }
+
+  private static int[] read_ints (DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+    int[] values = new int[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  public static void main (String[] argv) {
+    //
+    // AnnotationSnapshot [-strand +|-] [-t2g FILE] FILE ...
+    // (re)compile snapshots
+    //
+    try {
+      String strand_filter = null;
+      String t2g = null;
+      for (int i = 0; i < argv.length; i++) {
+	if (argv[i].equals("-strand")) {
+	  strand_filter = argv[++i];
+	} else if (argv[i].equals("-t2g")) {
+	  t2g = argv[++i];
+	} else {
+	  File snapshot = get_snapshot_file(argv[i]);
+	  IntronCache ic = parse(argv[i], strand_filter, t2g);
+	  write(ic, new File(argv[i]), t2g == null ? null : new File(t2g), snapshot);
+	  load(snapshot);
+	}
+      }
+    } catch (Exception e) {
+      System.err.println("ERROR: " + e);  // debug
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,204 @@
+package org.stjude.compbio.rnapeg;
+// random access to a BGZF (bgzip) compressed file by uncompressed
+// file position, using the .gzi block index written by "bgzip -i"
+// or "samtools faidx" (or, if there is none, by scanning the block
+// headers).  Only the blocks covering a read are decompressed.
+//
+// Blocks are read with positional reads and inflated independently,
+// and each thread keeps its own most recently decompressed block, so
+// several threads may read (and decompress) at once.
+//
+// BGZF: https://samtools.github.io/hts-specs/SAMv1.pdf section 4.1
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class BGZFFile implements ByteSource {
+  private static final int HEADER_SIZE = 18;
+  // gzip header with the BGZF "BC" extra subfield
+  private static final int TRAILER_SIZE = 8;
+  // CRC32 and ISIZE
+
+  private final File file;
+  private final FileChannel fc;
+  private long[] compressed_offsets, uncompressed_offsets;
+  // block starts, in both files
+
+  private static class Block {
+    int index;
+    byte[] data = new byte[65536];
+    int length;
+    byte[] raw = new byte[65536];
+    // compressed block
+    Inflater inflater = new Inflater(true);
+    // raw deflate: no zlib header.  reset() for each block
+  }
+  private final ThreadLocal<Block> last_block = new ThreadLocal<Block>();
+
+  public BGZFFile (File file) throws IOException {
+    this.file = file;
+    fc = new RandomAccessFile(file, "r").getChannel();
+    File gzi = new File(file.getPath() + ".gzi");
+    if (gzi.exists()) {
+      load_index(gzi);
+    } else {
+      System.err.println("WARNING: no .gzi index for " + file + ", scanning BGZF blocks; generate with \"bgzip -r file\"");  // debug
+      scan_blocks();
+    }
+  }
+
+  public File get_file() {
+    return file;
+  }
+
+  public void close() throws IOException {
+    fc.close();
+  }
+
+  private void load_index (File gzi) throws IOException {
+    //
+    // little-endian uint64 count, then (compressed, uncompressed)
+    // offset pairs for each block after the first
+    //
+    byte[] raw = new byte[(int) gzi.length()];
+    DataInputStream dis = new DataInputStream(new FileInputStream(gzi));
+    try {
+      dis.readFully(raw);
+    } finally {
+      dis.close();
+    }
+    ByteBuffer bb = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+    int count = (int) bb.getLong();
+    if (raw.length != 8 + count * 16L) throw new IOException("bad .gzi index " + gzi);
+    compressed_offsets = new long[count + 1];
+    uncompressed_offsets = new long[count + 1];
+    for (int i = 1; i <= count; i++) {
+      compressed_offsets[i] = bb.getLong();
+      uncompressed_offsets[i] = bb.getLong();
+    }
+  }
+
+  private void scan_blocks() throws IOException {
+    long[] coffsets = new long[1024];
+    long[] uoffsets = new long[1024];
+    int count = 0;
+    long size = fc.size();
+    long c = 0;
+    long u = 0;
+    byte[] header = new byte[HEADER_SIZE];
+    byte[] trailer = new byte[TRAILER_SIZE];
+    while (c < size) {
+      read_fully(c, header, HEADER_SIZE);
+      int block_size = get_block_size(header, c);
+      read_fully(c + block_size - TRAILER_SIZE, trailer, TRAILER_SIZE);
+      if (count == coffsets.length) {
+	coffsets = Arrays.copyOf(coffsets, count * 2);
+	uoffsets = Arrays.copyOf(uoffsets, count * 2);
+      }
+      coffsets[count] = c;
+      uoffsets[count] = u;
+      count++;
+      c += block_size;
+      u += get_int_le(trailer, 4);
+    }
+    compressed_offsets = Arrays.copyOf(coffsets, Math.max(count, 1));
+    uncompressed_offsets = Arrays.copyOf(uoffsets, Math.max(count, 1));
+  }
+
+  public void read (long pos, byte[] dest, int offset, int length) throws IOException {
+    while (length > 0) {
+      int i = find_block(pos);
+      Block b = get_block(i);
+      int start = (int) (pos - uncompressed_offsets[i]);
+      int n = Math.min(length, b.length - start);
+      if (n <= 0) throw new IOException("read past end of " + file + " at " + pos);
+      System.arraycopy(b.data, start, dest, offset, n);
+      pos += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  private int find_block (long pos) {
+    //
+    // index of the last block starting at or before pos
+    //
+    int lo = 0;
+    int hi = uncompressed_offsets.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (uncompressed_offsets[mid] <= pos) {
+	lo = mid;
+      } else {
+	hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  private Block get_block (int i) throws IOException {
+    Block b = last_block.get();
+    if (b == null) {
+      b = new Block();
+      last_block.set(b);
+    } else if (b.index == i && b.length >= 0) {
+      return b;
+    }
+    b.length = -1;
+    // invalid if decompression fails
+
+    long c = compressed_offsets[i];
+    byte[] raw = b.raw;
+    read_fully(c, raw, HEADER_SIZE);
+    int block_size = get_block_size(raw, c);
+    int xlen = (raw[10] & 0xff) | ((raw[11] & 0xff) << 8);
+    if (block_size > raw.length) raw = b.raw = new byte[block_size];
+    read_fully(c, raw, block_size);
+
+    int isize = get_int_le(raw, block_size - 4);
+    if (isize > b.data.length) b.data = new byte[isize];
+    Inflater inflater = b.inflater;
+    inflater.reset();
+    try {
+      inflater.setInput(raw, 12 + xlen, block_size - 12 - xlen - TRAILER_SIZE);
+      int n = 0;
+      while (n < isize) {
+	int inflated = inflater.inflate(b.data, n, isize - n);
+	if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+	n += inflated;
+      }
+      if (n != isize) throw new IOException("truncated BGZF block at " + c + " in " + file);
+    } catch (DataFormatException e) {
+      throw new IOException("corrupt BGZF block at " + c + " in " + file + ": " + e);
+    }
+    b.index = i;
+    b.length = isize;
+    return b;
+  }
+
+  private int get_block_size (byte[] header, long c) throws IOException {
+    if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0 ||
+	header[12] != 'B' || header[13] != 'C') {
+      throw new IOException("not a BGZF block at " + c + " in " + file + " (compress with bgzip)");
+    }
+    return ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+    // BSIZE is total block size - 1
+  }
+
+  private void read_fully (long pos, byte[] buf, int length) throws IOException {
+    ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+    while (bb.hasRemaining()) {
+      if (fc.read(bb, pos + bb.position()) < 0) throw new EOFException("unexpected end of " + file);
+      // positional read: doesn't move the channel's position
+    }
+  }
+
+  private static int get_int_le (byte[] buf, int i) {
+    return (buf[i] & 0xff) | ((buf[i + 1] & 0xff) << 8) |
+      ((buf[i + 2] & 0xff) << 16) | ((buf[i + 3] & 0xff) << 24);
+  }
+
+}
@@ -0,0 +1,13 @@
+package org.stjude.compbio.rnapeg;
+// random access to the (uncompressed) bytes of a file, e.g. a FASTA
+// file read by FASTAFileTools: see MappedFile and BGZFFile.
+// Implementations may be read from several threads at once.
+
+import java.io.*;
+
+public interface ByteSource {
+
+  public void read (long pos, byte[] dest, int offset, int length) throws IOException;
+  // copy length bytes starting at file position pos
+
+}
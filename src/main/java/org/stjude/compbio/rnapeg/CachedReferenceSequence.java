@@ -0,0 +1,227 @@
+package org.stjude.compbio.rnapeg;
+// ReferenceSequence decorator caching decoded sequence: whole
+// chromosomes from get_all().  get_region() is served from a cached
+// chromosome when one is present, and otherwise read straight from the
+// source: regions (e.g. -reference-window windows) are rarely
+// requested twice, so caching them would only evict chromosomes.
+// Least recently used entries are evicted to keep the total within a
+// byte budget.  Entries may optionally be stored off-heap, in direct
+// buffers.
+//
+// Safe for concurrent readers: each entry is loaded once, by the
+// first thread to request it, and other threads wait for that load.
+// Callers get their own copy of cached bases.
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class CachedReferenceSequence implements ReferenceSequence {
+  private final ReferenceSequence rs;
+  private final long max_bytes;
+  private final boolean off_heap;
+
+  private final LinkedHashMap<String,Entry> entries;
+  // in access order, so eldest is least recently used
+  private final HashMap<String,FutureTask<Entry>> loads;
+  private long bytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private static class Entry {
+    final byte[] heap;
+    final ByteBuffer direct;
+    final int length;
+
+    Entry (byte[] seq, boolean off_heap) {
+      length = seq.length;
+      if (off_heap) {
+	heap = null;
+	direct = ByteBuffer.allocateDirect(length);
+	direct.put(seq);
+      } else {
+	heap = seq;
+	direct = null;
+      }
+    }
+
+    byte[] copy (int start, int length) {
+      byte[] results = new byte[length];
+      if (heap == null) {
+	ByteBuffer bb = direct.duplicate();
+	((Buffer) bb).position(start);
+	// Buffer: ByteBuffer.position(int) doesn't exist in Java 8
+	bb.get(results);
+      } else {
+	System.arraycopy(heap, start, results, 0, length);
+      }
+      return results;
+    }
+  }
+
+  public CachedReferenceSequence (ReferenceSequence rs, long max_bytes, boolean off_heap) {
+    this.rs = rs;
+    this.max_bytes = max_bytes;
+    this.off_heap = off_heap;
+    entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    loads = new HashMap<String,FutureTask<Entry>>();
+  }
+
+  public ReferenceSequence get_source() {
+    return rs;
+  }
+
+  public byte[] get_region (String sequence_name, int start_base, int length) throws IOException {
+    Entry all;
+    synchronized (this) {
+      all = entries.get(sequence_name);
+    }
+    if (all != null && start_base >= 1 && length >= 0 &&
+	(long) start_base - 1 + length <= all.length) {
+      hits.incrementAndGet();
+      return all.copy(start_base - 1, length);
+    }
+    // otherwise out-of-range handling is left to the source
+
+    misses.incrementAndGet();
+    return read_source(sequence_name, start_base, length);
+  }
+
+  public byte[] get_all (final String sequence_name) throws IOException {
+    Entry e = get_entry(sequence_name,
+			new Callable<byte[]>() {
+			  public byte[] call() throws IOException {
+			    return read_source(sequence_name, 0, 0);
+			  }
+			});
+    return e == null ? null : e.copy(0, e.length);
+  }
+
+  private byte[] read_source (String sequence_name, int start_base, int length) throws IOException {
+    //
+    // region, or whole sequence if start_base is 0
+    //
+    if (!rs.supports_concurrent_access()) {
+      synchronized (rs) {
+	return start_base == 0 ? rs.get_all(sequence_name) : rs.get_region(sequence_name, start_base, length);
+      }
+    }
+    return start_base == 0 ? rs.get_all(sequence_name) : rs.get_region(sequence_name, start_base, length);
+  }
+
+  public int get_length (String sequence_name) throws IOException {
+    if (!rs.supports_concurrent_access()) {
+      synchronized (rs) {
+	return rs.get_length(sequence_name);
+      }
+    }
+    return rs.get_length(sequence_name);
+  }
+
+  public boolean supports_sequence_list() {
+    return rs.supports_sequence_list();
+  }
+
+  public boolean supports_concurrent_access() {
+    return true;
+  }
+
+  public ArrayList<String> get_sequence_names() {
+    return rs.get_sequence_names();
+  }
+
+  private Entry get_entry (String key, final Callable<byte[]> source) throws IOException {
+    //
+    // cached entry, loading it if necessary; null if the source
+    // has no such sequence
+    //
+    FutureTask<Entry> load;
+    boolean loader = false;
+    synchronized (this) {
+      Entry e = entries.get(key);
+      if (e != null) {
+	hits.incrementAndGet();
+	return e;
+      }
+      load = loads.get(key);
+      if (load == null) {
+	load = new FutureTask<Entry>(new Callable<Entry>() {
+	    public Entry call() throws Exception {
+	      byte[] seq = source.call();
+	      return seq == null ? null : new Entry(seq, off_heap);
+	    }
+	  });
+	loads.put(key, load);
+	loader = true;
+	misses.incrementAndGet();
+      } else {
+	hits.incrementAndGet();
+	// another thread is already loading it
+      }
+    }
+
+    if (loader) {
+      load.run();
+      synchronized (this) {
+	loads.remove(key);
+	try {
+	  Entry e = load.get();
+	  if (e != null) add(key, e);
+	} catch (Exception ex) {
+	  // reported below
+	}
+      }
+    }
+
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private void add (String key, Entry e) {
+    // caller holds lock
+    if (e.length > max_bytes) return;
+    // would evict everything else and then itself
+    entries.put(key, e);
+    bytes += e.length;
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > max_bytes) {
+      Entry eldest = it.next();
+      it.remove();
+      bytes -= eldest.length;
+      evictions.incrementAndGet();
+    }
+  }
+
+  public long get_hits() {
+    return hits.get();
+  }
+
+  public long get_misses() {
+    return misses.get();
+  }
+
+  public long get_evictions() {
+    return evictions.get();
+  }
+
+  public synchronized long get_bytes() {
+    return bytes;
+  }
+
+  public String get_stats() {
+    return "hits=" + get_hits() + " misses=" + get_misses() +
+      " evictions=" + get_evictions() + " bytes=" + get_bytes();
+  }
+
+}
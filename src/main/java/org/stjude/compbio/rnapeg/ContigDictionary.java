@@ -0,0 +1,105 @@
+package org.stjude.compbio.rnapeg;
+// contig (reference sequence) dictionary: assigns each contig a dense
+// int ID, shared by the BAM header, the reference sequence and gene
+// annotations, so that names are resolved once, when sources are
+// added, rather than on every lookup.
+//
+// Contigs are identified by Chromosome.standardize_name() (e.g. "1",
+// "chr1" and "CHR1" are the same contig), and every spelling seen is
+// registered as an alias.  For each contig, the name as it appears in
+// the reference sequence is also kept.
+//
+// Contigs may be added concurrently (e.g. by SplicedReadReporter
+// batch mode samples); lookups need no locking.
+
+import htsjdk.samtools.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ContigDictionary {
+  public static final int NONE = -1;
+
+  private final ConcurrentHashMap<String,Integer> ids;
+  // alias => ID
+  private volatile String[] names;
+  // standardized names
+  private volatile String[] reference_names;
+  // names in the reference sequence (null if not present)
+  private int size = 0;
+
+  public ContigDictionary() {
+    ids = new ConcurrentHashMap<String,Integer>();
+    names = new String[64];
+    reference_names = new String[64];
+  }
+
+  public synchronized int add (String name) {
+    int id = get_id(name);
+    if (id == NONE) {
+      if (size == names.length) {
+	reference_names = Arrays.copyOf(reference_names, size * 2);
+	names = Arrays.copyOf(names, size * 2);
+      }
+      id = size;
+      names[id] = Chromosome.standardize_name(name);
+      size++;
+      // publish the name before the ID
+      ids.put(names[id], id);
+    }
+    ids.put(name, id);
+    return id;
+  }
+
+  public int[] add_header (SAMFileHeader h) {
+    //
+    // IDs for a BAM's references, by reference index
+    //
+    List<SAMSequenceRecord> sequences = h.getSequenceDictionary().getSequences();
+    int[] results = new int[sequences.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = add(sequences.get(i).getSequenceName());
+    }
+    return results;
+  }
+
+  public synchronized void add_reference (ReferenceSequence rs) {
+    if (!rs.supports_sequence_list()) return;
+    for (String name : rs.get_sequence_names()) {
+      int id = add(name);
+      if (reference_names[id] == null) reference_names[id] = name;
+    }
+  }
+
+  public int get_id (String name) {
+    //
+    // NONE if not present
+    //
+    Integer id = ids.get(name);
+    if (id == null) {
+      id = ids.get(Chromosome.standardize_name(name));
+      if (id == null) id = NONE;
+      if (id != NONE) ids.putIfAbsent(name, id);
+      // only cache hits: the contig may be added later
+    }
+    return id;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String get_name (int id) {
+    return names[id];
+  }
+
+  public String get_reference_name (int id) {
+    //
+    // name to request from the reference sequence: as it appears
+    // there if known, otherwise left to the reference's own name
+    // matching
+    //
+    String name = reference_names[id];
+    return name == null ? names[id] : name;
+  }
+
+}
@@ -1,16 +1,25 @@
 package org.stjude.compbio.rnapeg;
 
 public class FAIIndexRecord {
-  String sequence_id;
-  int sequence_length;
-  long file_sequence_offset;
-  int nt_per_line;
+  //
+  // immutable, so may be shared between threads
+  //
+  final String sequence_id;
+  final int sequence_length;
+  final long file_sequence_offset;
+  final int nt_per_line;
   // count of nucleotides per line (cooked)
-  int bytes_per_line;
+  final int bytes_per_line;
   // count of file bytes per line (raw, includes line breaks)
 
-  public FAIIndexRecord () {
+  public FAIIndexRecord (String sequence_id, int sequence_length, long file_sequence_offset,
+			 int nt_per_line, int bytes_per_line) {
     // manual
+    this.sequence_id = sequence_id;
+    this.sequence_length = sequence_length;
+    this.file_sequence_offset = file_sequence_offset;
+    this.nt_per_line = nt_per_line;
+    this.bytes_per_line = bytes_per_line;
   }
 
   public FAIIndexRecord (String s) {
@@ -24,6 +33,10 @@ public class FAIIndexRecord {
       bytes_per_line = Integer.parseInt(fields[4]);
     } else {
       System.err.println("ERROR: need 5-field FAI record");  // debug
+      sequence_id = null;
+      sequence_length = 0;
+      file_sequence_offset = 0;
+      nt_per_line = bytes_per_line = 0;
     }
   }
 
@@ -1,8 +1,11 @@
 package org.stjude.compbio.rnapeg;
 
 import java.io.*;
+import java.util.concurrent.*;
 
 public class FASTAFileTools {
+  private static final int PARALLEL_BASES = 1 << 20;
+  // get_all() copies longer sequences in parallel chunks of about this size
 
   private long fa_ptr_id;
   // file pointer for sequence ID line
@@ -30,35 +33,37 @@ public class FASTAFileTools {
     // - number of nucleotides per line (cooked)
     // - number of file bytes per line (includes line break)
     //
-    index = new FAIIndexRecord();
+    index = null;
 
     fa_ptr_id = raf.getFilePointer();
     String id_line = raf.readLine();
     if (id_line.indexOf(">") == 0) {
-      index.file_sequence_offset = raf.getFilePointer();
+      long file_sequence_offset = raf.getFilePointer();
       String first_sequence_line = raf.readLine();
       long ptr_second = raf.getFilePointer();
-      index.bytes_per_line = (int) (ptr_second - index.file_sequence_offset);
+      int bytes_per_line = (int) (ptr_second - file_sequence_offset);
       //      System.err.println("first="+first_sequence_line);  // debug
-      index.nt_per_line = first_sequence_line.length();
-      //      System.err.println("nt/line="+index.nt_per_line);  // debug
-      //      System.err.println("bytes/line="+index.bytes_per_line);  // debug
+      int nt_per_line = first_sequence_line.length();
+      //      System.err.println("nt/line="+nt_per_line);  // debug
+      //      System.err.println("bytes/line="+bytes_per_line);  // debug
 
       long flen = raf.length();
       //      System.err.println("flen="+flen);  // debug
 
-      long body_size = flen - index.file_sequence_offset;
+      long body_size = flen - file_sequence_offset;
       //      System.err.println("body="+body_size);  // debug
 
-      long lines = body_size / index.bytes_per_line;
-      int line_overhead = index.get_line_overhead();
+      long lines = body_size / bytes_per_line;
+      int line_overhead = bytes_per_line - nt_per_line;
 
-      long leftover = body_size % index.bytes_per_line;
+      long leftover = body_size % bytes_per_line;
       if (leftover > 0) leftover -= line_overhead;
       // if partial line, make sure to account for line-terminator overhead
 
-      index.sequence_length = (int) ((lines * index.nt_per_line) + leftover);
+      int sequence_length = (int) ((lines * nt_per_line) + leftover);
       // only valid if 1 sequence in this file!
+      index = new FAIIndexRecord(id_line.substring(1).split("\\s+")[0], sequence_length, file_sequence_offset,
+				 nt_per_line, bytes_per_line);
     } else {
       System.err.println("ERROR: expected FASTA ID line, got " + id_line);  // debug
     }
@@ -69,7 +74,20 @@ public class FASTAFileTools {
     return index;
   }
 
-  public byte[] get_region (RandomAccessFile raf, int start_base, int length) throws IOException {
+  public byte[] get_region (ByteSource source, int start_base, int length) throws IOException {
+    return get_region(source, index, start_base, length);
+  }
+
+  public byte[] get_all (ByteSource source) throws IOException {
+    return get_all(source, index);
+  }
+
+  public static byte[] get_region (ByteSource source, FAIIndexRecord index,
+				   int start_base, int length) throws IOException {
+    //
+    // static versions hold no state, so may be used from any number
+    // of threads if the ByteSource can be
+    //
     byte[] results = null;
 
     if (start_base > index.sequence_length) {
@@ -77,8 +95,6 @@ public class FASTAFileTools {
     } else if (start_base < 1) {
       System.err.println("ERROR: start base must be at least 1");  // debug
     } else {
-      //	System.err.println("FIX ME: TRIM if asking for too much");  // debug
-
       int overflow = (start_base + length - 1) - index.sequence_length;
       //	System.err.println("overflow="+overflow);  // debug
       if (overflow > 0) {
@@ -86,70 +102,83 @@ public class FASTAFileTools {
 	length -= overflow;
       }
 
-      int needed = length;
-
-      int base_index = start_base - 1;
+      results = new byte[length];
+      copy_bases(source, index, start_base - 1, results, 0, length);
       // convert from base # to sequence index
+    }
 
-      int start_line_num = base_index / index.nt_per_line;
-      int start_line_index = base_index % index.nt_per_line;
-
-      long start_ptr = index.file_sequence_offset +
-	(start_line_num * index.bytes_per_line) +
-	start_line_index;
-
-      raf.seek(start_ptr);
+    return results;
+  }
 
-      String line;
-      results = new byte[length];
-      int buf_ptr = 0;
-      int i;
-
-      while (true) {
-	line = raf.readLine();
-	if (line == null) break;
-	char[] chars = line.toCharArray();
-	// slow, but a PITA to deal with line endings if in middle of line
-	for (i=0; i < chars.length && needed > 0; needed--) {
-	  results[buf_ptr++] = (byte) chars[i++];
-	}
-	if (needed <= 0) break;
+  public static byte[] get_all (ByteSource source, FAIIndexRecord index) throws IOException {
+    //
+    // whole sequence: for a large chromosome, line breaks are stripped
+    // by splitting the sequence into runs of whole lines which are
+    // copied on the common fork/join pool
+    //
+    byte[] results = new byte[index.sequence_length];
+    if (results.length > PARALLEL_BASES) {
+      try {
+	ForkJoinPool.commonPool().invoke(new CopyTask(source, index, results, 0, results.length));
+      } catch (UncheckedIOException e) {
+	throw e.getCause();
       }
+    } else {
+      copy_bases(source, index, 0, results, 0, results.length);
     }
-
     return results;
   }
 
-  public byte[] get_all (RandomAccessFile raf) throws IOException {
-    int needed = index.sequence_length;
-    byte[] results = new byte[needed];
-    int buf_ptr = 0;
-
-    raf.seek(index.file_sequence_offset);
-    // move file pointer to start of sequence
-
-    int read;
-      
-    while (true) {
-      if (needed <= 0) break;
+  private static class CopyTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final ByteSource source;
+    private final FAIIndexRecord index;
+    private final byte[] dest;
+    private final int base_index, count;
+
+    CopyTask (ByteSource source, FAIIndexRecord index, byte[] dest, int base_index, int count) {
+      this.source = source;
+      this.index = index;
+      this.dest = dest;
+      this.base_index = base_index;
+      this.count = count;
+    }
 
-      try {
-	//	  System.err.println("needed="+needed + " lb="+ line_bytes);  // debug
-	read = needed < index.bytes_per_line ? needed : index.bytes_per_line;
-	raf.readFully(results, buf_ptr, read);
-	buf_ptr += index.nt_per_line;
-	// only move pointer up by the number of nt in the line
-	// (i.e. not the line break at the end)
-	needed -= index.nt_per_line;
-	//	  System.err.println("buf_ptr="+buf_ptr);  // debug
-	//	  System.err.println("needed="+needed);  // debug
-      } catch (EOFException ex) {
-	//	  System.err.println("EOF");  // debug
-	break;
+    protected void compute() {
+      // (RecursiveAction can't throw IOException)
+      int half = (count / 2 / index.nt_per_line) * index.nt_per_line;
+      // split on a line boundary
+      if (count <= PARALLEL_BASES || half == 0) {
+	try {
+	  copy_bases(source, index, base_index, dest, base_index, count);
+	} catch (IOException e) {
+	  throw new UncheckedIOException(e);
+	}
+      } else {
+	invokeAll(new CopyTask(source, index, dest, base_index, half),
+		  new CopyTask(source, index, dest, base_index + half, count - half));
       }
     }
+  }
 
-    return results;
+  private static void copy_bases (ByteSource source, FAIIndexRecord index, int base_index,
+				  byte[] dest, int offset, int count) throws IOException {
+    //
+    // copy bases straight from the file, a line at a time: line
+    // positions follow from the index's fixed line length, so line
+    // breaks never need to be read
+    //
+    int line = base_index / index.nt_per_line;
+    int line_index = base_index % index.nt_per_line;
+    while (count > 0) {
+      int n = Math.min(index.nt_per_line - line_index, count);
+      source.read(index.file_sequence_offset + (long) line * index.bytes_per_line + line_index,
+	      dest, offset, n);
+      offset += n;
+      count -= n;
+      line++;
+      line_index = 0;
+    }
   }
 
   public void set_index (FAIIndexRecord index) {
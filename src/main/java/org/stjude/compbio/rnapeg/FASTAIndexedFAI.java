@@ -2,26 +2,39 @@ package org.stjude.compbio.rnapeg;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
 import htsjdk.samtools.cram.ref.ReferenceSource;
 
 public class FASTAIndexedFAI implements ReferenceSequence {
   //
-  // access a set of sequences in a FASTA file via samtools .fai index format
+  // access a set of sequences in a FASTA file via samtools .fai index format.
+  // Reads are positional (and index records immutable), with no
+  // shared file pointer, so one instance may be used by many threads.
   //
-  RandomAccessFile raf;
+  ByteSource bytes;
+  // memory-mapped, or BGZF (bgzip) compressed if .gz
   HashMap<String,FAIIndexRecord> index;
-  FASTAFileTools ffp = new FASTAFileTools();
   ReferenceSource rs = null;
+  ChromosomeDisambiguator cd = null;
+  ConcurrentHashMap<String,String> lookups = new ConcurrentHashMap<String,String>();
+  // requested name => index key ("" if not present)
 
   public FASTAIndexedFAI (String fn) throws FileNotFoundException,IOException {
-    raf = new RandomAccessFile(fn, "r");
-    rs = new ReferenceSource(new File(fn));
+    if (fn.endsWith(".gz")) {
+      bytes = new BGZFFile(new File(fn));
+      // .fai (from "samtools faidx") has uncompressed offsets
+    } else {
+      bytes = new MappedFile(new File(fn));
+      rs = new ReferenceSource(new File(fn));
+      // htsjdk can't read compressed FASTA for CRAM
+    }
     load_index(fn + ".fai");
   }
 
   private void load_index (String fn) throws FileNotFoundException,IOException {
     File f = new File(fn);
-    index = new HashMap<String,FAIIndexRecord>();
+    index = new LinkedHashMap<String,FAIIndexRecord>();
+    // sequence names in file order
     if (f.exists()) {
       //      System.err.println("load index");  // debug
       BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
@@ -44,8 +57,7 @@ public class FASTAIndexedFAI implements ReferenceSequence {
     byte[] results = null;
     FAIIndexRecord ir = get_index_for(sequence_name);
     if (ir != null) {
-      ffp.set_index(ir);
-      results = ffp.get_region(raf, start_base, length);
+      results = FASTAFileTools.get_region(bytes, ir, start_base, length);
     }
     return results;
   }
@@ -54,29 +66,39 @@ public class FASTAIndexedFAI implements ReferenceSequence {
     byte[] results = null;
     FAIIndexRecord ir = get_index_for(sequence_name);
     if (ir != null) {
-      ffp.set_index(ir);
-      results = ffp.get_all(raf);
+      results = FASTAFileTools.get_all(bytes, ir);
     }
     return results;
   }
 
   private FAIIndexRecord get_index_for (String id) {
-    FAIIndexRecord result = null;
-    for (String key : SAMUtils.get_refname_alternates(id)) {
-      result = index.get(key);
-      if (result != null) break;
-    }
+    String key = lookups.get(id);
+    if (key == null) {
+      key = "";
+      for (String alt : SAMUtils.get_refname_alternates(id)) {
+	if (index.containsKey(alt)) {
+	  key = alt;
+	  break;
+	}
+      }
 
-    if (result == null) {
-      ChromosomeDisambiguator cd = new ChromosomeDisambiguator(index.keySet());
-      String key = cd.find(id);
-      if (key != null) result = index.get(key);
-    }
+      if (key.length() == 0) {
+	String found = get_disambiguator().find(id);
+	if (found != null) key = found;
+      }
 
-    if (result == null) {
-      System.err.println("WARNING: can't find .fai index entry for " + id);  // debug
+      if (key.length() == 0) {
+	System.err.println("WARNING: can't find .fai index entry for " + id);  // debug
+      }
+      lookups.put(id, key);
     }
-    return result;
+    return key.length() == 0 ? null : index.get(key);
+  }
+
+  private synchronized ChromosomeDisambiguator get_disambiguator() {
+    if (cd == null) cd = new ChromosomeDisambiguator(index.keySet());
+    // built once, on the first name needing it
+    return cd;
   }
 
 
@@ -109,6 +131,10 @@ public class FASTAIndexedFAI implements ReferenceSequence {
     return true;
   }
 
+  public boolean supports_concurrent_access() {
+    return true;
+  }
+
   public ArrayList<String> get_sequence_names() {
     return new ArrayList<String>(index.keySet());
   }
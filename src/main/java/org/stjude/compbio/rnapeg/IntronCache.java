@@ -3,6 +3,7 @@ package org.stjude.compbio.rnapeg;
 // - track exact genes hit
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.util.zip.*;
 
@@ -11,16 +12,163 @@ public class IntronCache {
   // load refGene-style records and cache intron positions by reference sequence.
   // should be more efficient since we are loading a very large number of these.
   //
-  //  HashMap<String,HashSet<String>> cache;
-  // reference sequence -> junctions
-  HashMap<String,HashMap<String,HashSet<UCSCRefGene>>> cache;
-  // reference sequence -> junction -> matching UCSCRefGene objects
+  // Each contig's introns are a sorted long[] of junction keys (as
+  // JunctionTable.get_key(), i.e. the flanking exon bases), searched
+  // with a binary search, with parallel offsets into a list of
+  // transcripts for each intron.  is_known() doesn't allocate, and
+  // find_exon_junction() only a view of the transcripts.
+  //
+  // The arrays are buffers so they may also be memory-mapped from an
+  // AnnotationSnapshot rather than built from refFlat text.
+  //
+  public static final int NONE = -1;
+
+  ContigDictionary contigs;
+  // annotated contigs, and any added later (e.g. from BAM headers)
+  ArrayList<ContigIntrons> cache;
+  // contig ID -> introns
+  UCSCRefGene[] genes;
+  // all usable transcripts, sorted by transcript name
+  AnnotationSnapshot snapshot = null;
+  // if loaded from a snapshot: transcripts are decoded from it instead
   private String strand_filter = null;
-  
+
+  static class ContigIntrons {
+    LongBuffer keys;
+    // sorted junction keys
+    IntBuffer offsets;
+    // transcripts for keys[i] are transcripts[offsets[i]] to
+    // transcripts[offsets[i + 1] - 1]
+    IntBuffer transcripts;
+    // indexes into genes
+
+    private int size;
+    private long[] key_list;
+    private int[] key_genes;
+    // while loading: key and transcript of each intron
+    // occurrence, in file order
+
+    ContigIntrons() {
+      key_list = new long[64];
+      key_genes = new int[64];
+    }
+
+    ContigIntrons (LongBuffer keys, IntBuffer offsets, IntBuffer transcripts) {
+      this.keys = keys;
+      this.offsets = offsets;
+      this.transcripts = transcripts;
+    }
+
+    void add (long key, int gene) {
+      if (size == key_list.length) {
+	key_list = Arrays.copyOf(key_list, size * 2);
+	key_genes = Arrays.copyOf(key_genes, size * 2);
+      }
+      key_list[size] = key;
+      key_genes[size] = gene;
+      size++;
+    }
+
+    void finish (int[] gene_ranks) {
+      //
+      // sort and group intron occurrences: distinct keys, each with
+      // its transcripts in name order
+      //
+      long[] sorted = Arrays.copyOf(key_list, size);
+      Arrays.sort(sorted);
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+	if (count == 0 || sorted[i] != sorted[count - 1]) sorted[count++] = sorted[i];
+      }
+      long[] key_array = Arrays.copyOf(sorted, count);
+
+      int[] offset_array = new int[count + 1];
+      int[] intron = new int[size];
+      for (int i = 0; i < size; i++) {
+	intron[i] = Arrays.binarySearch(key_array, key_list[i]);
+	offset_array[intron[i] + 1]++;
+      }
+      for (int i = 0; i < count; i++) {
+	offset_array[i + 1] += offset_array[i];
+      }
+      int[] transcript_array = new int[size];
+      int[] fill = Arrays.copyOf(offset_array, count);
+      for (int i = 0; i < size; i++) {
+	transcript_array[fill[intron[i]]++] = gene_ranks[key_genes[i]];
+      }
+      for (int i = 0; i < count; i++) {
+	Arrays.sort(transcript_array, offset_array[i], offset_array[i + 1]);
+      }
+
+      keys = LongBuffer.wrap(key_array);
+      offsets = IntBuffer.wrap(offset_array);
+      transcripts = IntBuffer.wrap(transcript_array);
+      key_list = null;
+      key_genes = null;
+    }
+
+    int find (long key) {
+      //
+      // binary search, with absolute gets only (buffers may be shared)
+      //
+      int lo = 0;
+      int hi = keys.limit() - 1;
+      while (lo <= hi) {
+	int mid = (lo + hi) >>> 1;
+	long k = keys.get(mid);
+	if (k < key) {
+	  lo = mid + 1;
+	} else if (k > key) {
+	  hi = mid - 1;
+	} else {
+	  return mid;
+	}
+      }
+      return NONE;
+    }
+
+    int size() {
+      return keys.limit();
+    }
+  }
+
+  private class TranscriptList extends AbstractList<UCSCRefGene> {
+    //
+    // read-only view of an intron's transcripts
+    //
+    private final IntBuffer transcripts;
+    private final int from, to;
+
+    TranscriptList (IntBuffer transcripts, int from, int to) {
+      this.transcripts = transcripts;
+      this.from = from;
+      this.to = to;
+    }
+
+    public UCSCRefGene get (int i) {
+      if (i < 0 || from + i >= to) throw new IndexOutOfBoundsException(Integer.toString(i));
+      return get_gene(transcripts.get(from + i));
+    }
+
+    public int size() {
+      return to - from;
+    }
+  }
+
   public IntronCache (UCSCRefGeneReader r) throws IOException {
     setup(r);
   }
 
+  IntronCache (AnnotationSnapshot snapshot, ContigDictionary contigs, ArrayList<ContigIntrons> cache) {
+    //
+    // see AnnotationSnapshot.load()
+    //
+    this.snapshot = snapshot;
+    this.contigs = contigs;
+    this.cache = cache;
+    strand_filter = snapshot.get_strand_filter();
+  }
+
   public IntronCache (UCSCRefGeneReader r, String strand_filter) throws IOException {
     this.strand_filter = strand_filter;
     setup(r);
@@ -28,7 +176,9 @@ public class IntronCache {
 
   private void setup (UCSCRefGeneReader r) throws IOException {
     //    System.err.println("setup() start");  // debug
-    cache = new HashMap<String,HashMap<String,HashSet<UCSCRefGene>>>();
+    contigs = new ContigDictionary();
+    cache = new ArrayList<ContigIntrons>();
+    ArrayList<UCSCRefGene> loaded = new ArrayList<UCSCRefGene>();
 
     long start = System.currentTimeMillis();
     int skipped = 0;
@@ -47,23 +197,25 @@ public class IntronCache {
 
       if (usable) {
 	//	System.err.println("using " + rg.name + " on " + rg.chrom + " " + rg.strand);  // debug
+	int gene = loaded.size();
+	loaded.add(rg);
 	Transcript t = new Transcript(rg, true);
 	for (TranscriptIntron ti : t.introns) {
-	  String ref_name = Chromosome.standardize_name(ti.get_reference());
+	  int contig_id = contigs.add(ti.get_reference());
+	  String ref_name = contigs.get_name(contig_id);
 	  if (ref_name.indexOf("chr") != 0)
 	    System.err.println("WARNING: non-chr* reference sequence " + ref_name);
 
-	  HashMap<String,HashSet<UCSCRefGene>> junction_bucket = cache.get(ref_name);
-	  if (junction_bucket == null) {
+	  while (cache.size() <= contig_id) {
+	    cache.add(null);
+	  }
+	  ContigIntrons introns = cache.get(contig_id);
+	  if (introns == null) {
 	    //	    System.err.println("create bucket for " + ref_name);  // debug
-	    cache.put(ref_name, junction_bucket = new HashMap<String,HashSet<UCSCRefGene>>());
+	    cache.set(contig_id, introns = new ContigIntrons());
 	  }
-	  String range = ti.get_range_digest().toString();
-
-	  HashSet<UCSCRefGene> rg_bucket = junction_bucket.get(range);
-	  if (rg_bucket == null) junction_bucket.put(range, rg_bucket = new HashSet<UCSCRefGene>());
-
-	  rg_bucket.add(rg);
+	  introns.add(JunctionTable.get_key(ti.start - 1, ti.end + 1), gene);
+	  // convert from intron bases to flanking exon bases
 	}
       } else {
 	skipped++;
@@ -72,33 +224,84 @@ public class IntronCache {
 
     if (skipped > 0) System.err.println("transcripts skipped on undesired strand: " + skipped);  // debug
 
+    Integer[] order = new Integer[loaded.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    final ArrayList<UCSCRefGene> by_file = loaded;
+    Arrays.sort(order, new Comparator<Integer>() {
+	public int compare (Integer a, Integer b) {
+	  return by_file.get(a).name.compareTo(by_file.get(b).name);
+	}
+      });
+    // stable: file order for duplicate names
+    genes = new UCSCRefGene[order.length];
+    int[] gene_ranks = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      genes[i] = loaded.get(order[i]);
+      gene_ranks[order[i]] = i;
+    }
 
     System.err.println("intron cache:");  // debug
     int total = 0;
-    for (String key : cache.keySet()) {
-      int count = cache.get(key).size();
-      System.err.println("  " + key + ": " + count);
+    for (int id = 0; id < cache.size(); id++) {
+      if (cache.get(id) == null) continue;
+      cache.get(id).finish(gene_ranks);
+      int count = cache.get(id).size();
+      System.err.println("  " + contigs.get_name(id) + ": " + count);
       total += count;
     }
     System.err.println("  total="+total);  // debug
     System.err.println("flatfile db load: " + (System.currentTimeMillis() - start) + " ms");  // debug
   }
 
-  public HashSet<UCSCRefGene> find_exon_junction (SplicedReadInfo sri) {
-    HashSet<UCSCRefGene> result = null;
-    String ref_name = Chromosome.standardize_name(sri.reference_name);
-    HashMap<String,HashSet<UCSCRefGene>> junction_bucket = cache.get(ref_name);
-    if (junction_bucket == null) {
-      if (Chromosome.valueOfString(sri.reference_name) != null) 
+  public ContigDictionary get_contigs() {
+    return contigs;
+  }
+
+  public String get_strand_filter() {
+    return strand_filter;
+  }
+
+  public int get_gene_count() {
+    return snapshot == null ? genes.length : snapshot.get_transcript_count();
+  }
+
+  public UCSCRefGene get_gene (int i) {
+    return snapshot == null ? genes[i] : snapshot.get_transcript(i);
+  }
+
+  private ContigIntrons get_introns (SplicedReadInfo sri) {
+    int contig_id = sri.contig_id;
+    if (contig_id == ContigDictionary.NONE) contig_id = contigs.get_id(sri.reference_name);
+    // ID is set for junctions from extraction, which shares this
+    // dictionary
+    ContigIntrons introns =
+      contig_id >= 0 && contig_id < cache.size() ? cache.get(contig_id) : null;
+    if (introns == null) {
+      if (Chromosome.valueOfString(sri.reference_name) != null)
 	System.err.println("no gene annotations for " + sri.reference_name);
       // happens in mm9 for chrM (no gene annotations).
       // "mostly harmless"
-    } else {
-      String key = (sri.segment_1_end + 1) +  "-" +
-      (sri.segment_2_start - 1);
-      // convert from exon bases to intron bases
-      //      System.err.println("key="+key + " bucket="+ bucket.size());  // debug
-      result = junction_bucket.get(key);
+    }
+    return introns;
+  }
+
+  public boolean is_known (SplicedReadInfo sri) {
+    ContigIntrons introns = get_introns(sri);
+    return introns != null &&
+      introns.find(JunctionTable.get_key(sri.segment_1_end, sri.segment_2_start)) != NONE;
+  }
+
+  public List<UCSCRefGene> find_exon_junction (SplicedReadInfo sri) {
+    //
+    // transcripts with this junction, in name order; null if none
+    //
+    List<UCSCRefGene> result = null;
+    ContigIntrons introns = get_introns(sri);
+    if (introns != null) {
+      int i = introns.find(JunctionTable.get_key(sri.segment_1_end, sri.segment_2_start));
+      if (i != NONE) result = new TranscriptList(introns.transcripts, introns.offsets.get(i), introns.offsets.get(i + 1));
     }
     return result;
   }
@@ -0,0 +1,226 @@
+package org.stjude.compbio.rnapeg;
+// cohort junction x sample read count matrix (SplicedReadReporter
+// -matrix), aggregated in memory as each sample's junctions are
+// reported rather than rebuilt from per-sample junction files.
+//
+// Sparse: distinct junctions are numbered via an open addressing table,
+// and each junction has a linked list of (sample, count) entries.
+// Everything is stored in primitive arrays.  Samples may be added to
+// concurrently.
+
+import java.io.*;
+import java.util.*;
+
+public class JunctionMatrix {
+  private static final int NONE = -1;
+  private static final int MIN_CAPACITY = 1024;
+
+  ArrayList<String> samples;
+  private HashMap<String,Integer> reference_ids;
+  private ArrayList<String> reference_names;
+  private ArrayList<Integer> reference_contigs;
+  // contig ID of each reference
+  private int[] contig_references;
+  // contig ID => reference number, or NONE
+
+  private int[] table;
+  // junction numbers, or NONE
+  private int table_mask;
+
+  private int junction_count;
+  private int[] junction_reference;
+  private long[] junction_key;
+  // JunctionTable.get_key()
+  private int[] junction_head;
+  // most recently added entry
+
+  private int entry_count;
+  private int[] entry_sample, entry_reads, entry_next;
+
+  public JunctionMatrix() {
+    samples = new ArrayList<String>();
+    reference_ids = new HashMap<String,Integer>();
+    reference_names = new ArrayList<String>();
+    reference_contigs = new ArrayList<Integer>();
+    contig_references = new int[0];
+    table = new int[MIN_CAPACITY * 2];
+    Arrays.fill(table, NONE);
+    table_mask = table.length - 1;
+    junction_reference = new int[MIN_CAPACITY];
+    junction_key = new long[MIN_CAPACITY];
+    junction_head = new int[MIN_CAPACITY];
+    entry_sample = new int[MIN_CAPACITY];
+    entry_reads = new int[MIN_CAPACITY];
+    entry_next = new int[MIN_CAPACITY];
+  }
+
+  public synchronized int add_sample (String name) throws IOException {
+    if (samples.contains(name)) throw new IOException("duplicate sample name " + name);
+    samples.add(name);
+    return samples.size() - 1;
+  }
+
+  public int get_junction_count() {
+    return junction_count;
+  }
+
+  public int get_entry_count() {
+    return entry_count;
+  }
+
+  public synchronized void add (int sample, SplicedReadInfo sri) {
+    int reference = NONE;
+    if (sri.contig_id >= 0 && sri.contig_id < contig_references.length) {
+      reference = contig_references[sri.contig_id];
+    }
+    if (reference == NONE) {
+      Integer known = reference_ids.get(sri.reference_name);
+      if (known == null) {
+	reference = reference_names.size();
+	reference_ids.put(sri.reference_name, reference);
+	reference_names.add(sri.reference_name);
+	reference_contigs.add(sri.contig_id);
+      } else {
+	reference = known;
+      }
+      if (sri.contig_id >= 0) {
+	if (sri.contig_id >= contig_references.length) {
+	  int old_length = contig_references.length;
+	  contig_references = Arrays.copyOf(contig_references, sri.contig_id + 64);
+	  Arrays.fill(contig_references, old_length, contig_references.length, NONE);
+	}
+	contig_references[sri.contig_id] = reference;
+      }
+    }
+    int j = add_junction(reference, JunctionTable.get_key(sri.segment_1_end, sri.segment_2_start));
+
+    if (entry_count == entry_sample.length) {
+      int capacity = entry_count * 2;
+      entry_sample = Arrays.copyOf(entry_sample, capacity);
+      entry_reads = Arrays.copyOf(entry_reads, capacity);
+      entry_next = Arrays.copyOf(entry_next, capacity);
+    }
+    int e = entry_count++;
+    entry_sample[e] = sample;
+    entry_reads[e] = sri.get_count();
+    entry_next[e] = junction_head[j];
+    junction_head[j] = e;
+  }
+
+  public void write (String filename, IntronCache ic) throws IOException {
+    //
+    // one row per junction/sample with reads, sorted by junction
+    // (as SplicedReadInfo) and then sample.
+    //
+    WorkingFile wf = new WorkingFile(filename);
+    PrintStream ps = wf.getPrintStream();
+    ps.println("junction\ttype\tsample\tcount");
+
+    ArrayList<String> names = new ArrayList<String>(reference_names);
+    Collections.sort(names);
+
+    int[] offsets = new int[reference_names.size() + 1];
+    for (int j = 0; j < junction_count; j++) {
+      offsets[junction_reference[j] + 1]++;
+    }
+    for (int r = 0; r < reference_names.size(); r++) {
+      offsets[r + 1] += offsets[r];
+    }
+    long[] positions = new long[junction_count];
+    int[] fill = Arrays.copyOf(offsets, offsets.length);
+    for (int j = 0; j < junction_count; j++) {
+      long key = junction_key[j];
+      positions[fill[junction_reference[j]]++] =
+	((long) JunctionTable.get_segment_1_end(key) << 32) |
+	JunctionTable.get_segment_2_start(key);
+    }
+    // junctions grouped by reference, as segment_1_end/segment_2_start
+    // so that each group sorts in SplicedReadInfo order
+
+    long[] row = new long[16];
+    for (String name : names) {
+      int reference = reference_ids.get(name);
+      Arrays.sort(positions, offsets[reference], offsets[reference + 1]);
+      for (int p = offsets[reference]; p < offsets[reference + 1]; p++) {
+	int segment_1_end = (int) (positions[p] >> 32);
+	int segment_2_start = (int) positions[p];
+	int j = find_junction(reference, JunctionTable.get_key(segment_1_end, segment_2_start));
+
+	SplicedReadInfo sri = new SplicedReadInfo(name, segment_1_end, segment_2_start);
+	sri.contig_id = reference_contigs.get(reference);
+	String junction = SplicedReadReporter.format_junction(sri);
+	String type = ic.is_known(sri) ? "known" : "novel";
+
+	int size = 0;
+	for (int e = junction_head[j]; e != NONE; e = entry_next[e]) {
+	  if (size == row.length) row = Arrays.copyOf(row, size * 2);
+	  row[size++] = ((long) entry_sample[e] << 32) | entry_reads[e];
+	}
+	Arrays.sort(row, 0, size);
+	// by sample
+
+	for (int i = 0; i < size; ) {
+	  int sample = (int) (row[i] >> 32);
+	  int count = 0;
+	  for (; i < size && (int) (row[i] >> 32) == sample; i++) {
+	    count += (int) row[i];
+	  }
+	  // a sample may report a junction more than once, e.g. if
+	  // query regions overlap
+	  ps.println(junction + "\t" + type + "\t" + samples.get(sample) + "\t" + count);
+	}
+      }
+    }
+    wf.finish();
+  }
+
+  private int find_junction (int reference, long key) {
+    for (int slot = hash(reference, key); table[slot] != NONE; slot = (slot + 1) & table_mask) {
+      int j = table[slot];
+      if (junction_key[j] == key && junction_reference[j] == reference) return j;
+    }
+    return NONE;
+  }
+
+  private int add_junction (int reference, long key) {
+    int slot = hash(reference, key);
+    for (; table[slot] != NONE; slot = (slot + 1) & table_mask) {
+      int j = table[slot];
+      if (junction_key[j] == key && junction_reference[j] == reference) return j;
+    }
+
+    if (junction_count == junction_key.length) {
+      int capacity = junction_count * 2;
+      junction_reference = Arrays.copyOf(junction_reference, capacity);
+      junction_key = Arrays.copyOf(junction_key, capacity);
+      junction_head = Arrays.copyOf(junction_head, capacity);
+    }
+    int j = junction_count++;
+    junction_reference[j] = reference;
+    junction_key[j] = key;
+    junction_head[j] = NONE;
+    table[slot] = j;
+
+    if (junction_count * 2 > table.length) rehash(table.length * 2);
+    return j;
+  }
+
+  private int hash (int reference, long key) {
+    long h = (key + reference * 0x632BE59BD9B4E019L) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & table_mask;
+  }
+
+  private void rehash (int capacity) {
+    table = new int[capacity];
+    Arrays.fill(table, NONE);
+    table_mask = capacity - 1;
+    for (int j = 0; j < junction_count; j++) {
+      int slot = hash(junction_reference[j], junction_key[j]);
+      while (table[slot] != NONE) {
+	slot = (slot + 1) & table_mask;
+      }
+      table[slot] = j;
+    }
+  }
+
+}
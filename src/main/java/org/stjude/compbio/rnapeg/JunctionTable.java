@@ -0,0 +1,200 @@
+package org.stjude.compbio.rnapeg;
+// pending junction counts for a single reference sequence, used during
+// extraction in place of a HashMap of SplicedReadInfo by name.
+//
+// Open addressing (linear probing) hash table keyed by a packed long
+// of segment_2_start and segment_1_end, with counters in parallel
+// primitive arrays, so tracking a junction allocates nothing.
+// SplicedReadInfo objects are only created when junctions are flushed.
+//
+// Entries are addressed by slot, which is only valid until the next
+// add() or remove().
+
+import java.util.*;
+
+public class JunctionTable {
+  private static final long EMPTY = Long.MIN_VALUE;
+  private static final int MIN_CAPACITY = 1024;
+
+  String reference_name;
+  int contig_id = ContigDictionary.NONE;
+
+  long[] keys;
+  int[] counter, counter_plus, counter_minus;
+  int[] counter_perfect, counter_clean, counter_flanking_qc;
+  int[] flush_index;
+  // as in SplicedReadInfo
+
+  private int size, mask;
+
+  public JunctionTable() {
+    allocate(MIN_CAPACITY);
+  }
+
+  public static long get_key (int segment_1_end, int segment_2_start) {
+    return ((long) segment_2_start << 32) | (segment_1_end & 0xffffffffL);
+    // keys sort by segment_2_start
+  }
+
+  public static int get_segment_1_end (long key) {
+    return (int) key;
+  }
+
+  public static int get_segment_2_start (long key) {
+    return (int) (key >> 32);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return keys.length;
+  }
+
+  public boolean is_used (int slot) {
+    return keys[slot] != EMPTY;
+  }
+
+  public int find (long key) {
+    // slot for key, or -1 if not present
+    int slot = hash(key);
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  public int add (long key) {
+    // slot for key, adding an entry with zero counts if not present
+    if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+    int slot = hash(key);
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) return slot;
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    size++;
+    return slot;
+  }
+
+  public void remove (long key) {
+    int slot = find(key);
+    if (slot == -1) return;
+    size--;
+    // backward shift deletion: move any later entries of the probe
+    // sequence which would otherwise become unreachable
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (keys[next] == EMPTY) break;
+      int home = hash(keys[next]);
+      if (((next - home) & mask) >= ((next - slot) & mask)) {
+	move(next, slot);
+	slot = next;
+      }
+    }
+    keys[slot] = EMPTY;
+    clear_counts(slot);
+  }
+
+  public void clear() {
+    if (size == 0) return;
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(counter, 0);
+    Arrays.fill(counter_plus, 0);
+    Arrays.fill(counter_minus, 0);
+    Arrays.fill(counter_perfect, 0);
+    Arrays.fill(counter_clean, 0);
+    Arrays.fill(counter_flanking_qc, 0);
+    Arrays.fill(flush_index, 0);
+    size = 0;
+  }
+
+  public SplicedReadInfo get_info (int slot) {
+    long key = keys[slot];
+    SplicedReadInfo sri = new SplicedReadInfo(reference_name,
+					      get_segment_1_end(key),
+					      get_segment_2_start(key));
+    sri.contig_id = contig_id;
+    sri.counter = counter[slot];
+    sri.counter_plus = counter_plus[slot];
+    sri.counter_minus = counter_minus[slot];
+    sri.counter_perfect = counter_perfect[slot];
+    sri.counter_clean = counter_clean[slot];
+    sri.counter_flanking_qc = counter_flanking_qc[slot];
+    sri.flush_index = flush_index[slot];
+    return sri;
+  }
+
+  public ArrayList<SplicedReadInfo> get_all() {
+    ArrayList<SplicedReadInfo> results = new ArrayList<SplicedReadInfo>(size);
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != EMPTY) results.add(get_info(slot));
+    }
+    return results;
+  }
+
+  private int hash (long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private void move (int from, int to) {
+    keys[to] = keys[from];
+    counter[to] = counter[from];
+    counter_plus[to] = counter_plus[from];
+    counter_minus[to] = counter_minus[from];
+    counter_perfect[to] = counter_perfect[from];
+    counter_clean[to] = counter_clean[from];
+    counter_flanking_qc[to] = counter_flanking_qc[from];
+    flush_index[to] = flush_index[from];
+  }
+
+  private void clear_counts (int slot) {
+    counter[slot] = counter_plus[slot] = counter_minus[slot] = 0;
+    counter_perfect[slot] = counter_clean[slot] = counter_flanking_qc[slot] = 0;
+    flush_index[slot] = 0;
+  }
+
+  private void allocate (int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    counter = new int[capacity];
+    counter_plus = new int[capacity];
+    counter_minus = new int[capacity];
+    counter_perfect = new int[capacity];
+    counter_clean = new int[capacity];
+    counter_flanking_qc = new int[capacity];
+    flush_index = new int[capacity];
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  private void resize (int capacity) {
+    long[] old_keys = keys;
+    int[] old_counter = counter;
+    int[] old_plus = counter_plus;
+    int[] old_minus = counter_minus;
+    int[] old_perfect = counter_perfect;
+    int[] old_clean = counter_clean;
+    int[] old_flanking_qc = counter_flanking_qc;
+    int[] old_flush_index = flush_index;
+
+    allocate(capacity);
+
+    for (int i = 0; i < old_keys.length; i++) {
+      if (old_keys[i] == EMPTY) continue;
+      int slot = add(old_keys[i]);
+      counter[slot] = old_counter[i];
+      counter_plus[slot] = old_plus[i];
+      counter_minus[slot] = old_minus[i];
+      counter_perfect[slot] = old_perfect[i];
+      counter_clean[slot] = old_clean[i];
+      counter_flanking_qc[slot] = old_flanking_qc[i];
+      flush_index[slot] = old_flush_index[i];
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package org.stjude.compbio.rnapeg;
+// binary min-heap of primitive longs, e.g. JunctionTable keys in
+// segment_2_start order.
+
+public class LongHeap {
+  private long[] heap;
+  private int size;
+
+  public LongHeap() {
+    heap = new long[1024];
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public long get (int i) {
+    // i'th entry, in heap (not sorted) order
+    return heap[i];
+  }
+
+  public void add (long v) {
+    if (size == heap.length) {
+      long[] bigger = new long[heap.length * 2];
+      System.arraycopy(heap, 0, bigger, 0, size);
+      heap = bigger;
+    }
+    int i = size++;
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      if (heap[parent] <= v) break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = v;
+  }
+
+  public long peek() {
+    return heap[0];
+  }
+
+  public long poll() {
+    long result = heap[0];
+    long v = heap[--size];
+    int i = 0;
+    int half = size >> 1;
+    while (i < half) {
+      int child = (i << 1) + 1;
+      if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+      if (v <= heap[child]) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = v;
+    return result;
+  }
+
+}
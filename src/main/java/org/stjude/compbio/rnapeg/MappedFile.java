@@ -0,0 +1,84 @@
+package org.stjude.compbio.rnapeg;
+// read-only memory mapping of an entire file, in segments of 1 GB
+// (a MappedByteBuffer is limited to 2 GB).  Only absolute reads are
+// used, so a MappedFile may be shared between threads.  The file
+// itself is closed once mapped.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class MappedFile implements ByteSource {
+  private static final int SEGMENT_BITS = 30;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+  private static final int SMALL_READ = 64;
+  // reads up to this size are copied byte by byte rather than via
+  // a duplicate buffer
+
+  private final File file;
+  private final long size;
+  private final ByteBuffer[] segments;
+
+  public MappedFile (File file) throws IOException {
+    this.file = file;
+    FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+    try {
+      size = fc.size();
+      segments = new ByteBuffer[(int) ((size + SEGMENT_MASK) >> SEGMENT_BITS)];
+      for (int i = 0; i < segments.length; i++) {
+	long start = (long) i << SEGMENT_BITS;
+	segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << SEGMENT_BITS));
+      }
+    } finally {
+      fc.close();
+      // mapping remains valid
+    }
+  }
+
+  public File get_file() {
+    return file;
+  }
+
+  public long size() {
+    return size;
+  }
+
+  public byte get (long pos) {
+    return segments[(int) (pos >> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+    // absolute get: doesn't touch the buffer's position
+  }
+
+  public void read (long pos, byte[] dest, int offset, int length) {
+    //
+    // bulk copy, across segments if necessary.  Uses a duplicate so
+    // the shared buffer's position is untouched.
+    //
+    if (length <= SMALL_READ) {
+      for (int i = 0; i < length; i++) {
+	dest[offset + i] = get(pos + i);
+      }
+      return;
+    }
+    for (int done = 0; done < length; ) {
+      ByteBuffer bb = segments[(int) (pos >> SEGMENT_BITS)].duplicate();
+      int start = (int) (pos & SEGMENT_MASK);
+      int n = Math.min(length - done, bb.limit() - start);
+      ((Buffer) bb).position(start);
+      // Buffer: ByteBuffer.position(int) doesn't exist in Java 8
+      bb.get(dest, offset + done, n);
+      done += n;
+      pos += n;
+    }
+  }
+
+  public int read_int (long pos, boolean big_endian) {
+    int b0 = get(pos) & 0xff;
+    int b1 = get(pos + 1) & 0xff;
+    int b2 = get(pos + 2) & 0xff;
+    int b3 = get(pos + 3) & 0xff;
+    return big_endian ?
+      (b0 << 24) | (b1 << 16) | (b2 << 8) | b3 :
+      (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+  }
+
+}
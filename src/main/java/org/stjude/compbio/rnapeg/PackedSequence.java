@@ -0,0 +1,207 @@
+package org.stjude.compbio.rnapeg;
+// reference sequence packed 2 bits per base for extraction, with runs
+// of bases other than A, C, G and T (N and other ambiguity codes)
+// stored as sorted intervals.  About a quarter the size of a byte per
+// base, so whole genomes can stay resident, and upper/lower case
+// (soft masking) doesn't need to be normalized.
+//
+// Packing is as in .2bit files (T=0, C=1, A=2, G=3, first base in the
+// high bits), so sequences can be copied straight from a
+// TwoBitMappedFile.  Immutable, so may be shared between threads.
+//
+// May also hold just a window of the sequence (SplicedReadReporter
+// -reference-window): bases from a start position (a multiple of 4)
+// onward.  Positions are still relative to the whole sequence.
+
+import java.io.*;
+import java.util.*;
+
+public class PackedSequence {
+  private static final byte[] CODE = new byte[256];
+  // base => 2-bit code, or -1 if not A/C/G/T (either case)
+  static {
+    Arrays.fill(CODE, (byte) -1);
+    CODE['T'] = CODE['t'] = 0;
+    CODE['C'] = CODE['c'] = 1;
+    CODE['A'] = CODE['a'] = 2;
+    CODE['G'] = CODE['g'] = 3;
+  }
+  private static final byte[] BASES = { 'T', 'C', 'A', 'G' };
+  private static final int[] DECODE = new int[256];
+  // packed byte => its 4 bases, first base in the low byte
+  static {
+    for (int i = 0; i < 256; i++) {
+      for (int j = 0; j < 4; j++) {
+	DECODE[i] |= BASES[(i >> (6 - j * 2)) & 3] << (j * 8);
+      }
+    }
+  }
+  private static final boolean[] IS_BASE = new boolean[256];
+  // read bases which are comparable (upper case ACGT)
+  static {
+    IS_BASE['A'] = IS_BASE['C'] = IS_BASE['G'] = IS_BASE['T'] = true;
+  }
+
+  final String name;
+  final int length;
+  // of the whole sequence
+  final int start;
+  // 0-based first base in packed
+  final byte[] packed;
+  final int[] n_starts, n_ends;
+  // ambiguous runs: 0-based start and end (exclusive)
+
+  public PackedSequence (String name, int length, byte[] packed, int[] n_starts, int[] n_ends) {
+    this(name, length, 0, packed, n_starts, n_ends);
+  }
+
+  public PackedSequence (String name, int length, int start, byte[] packed, int[] n_starts, int[] n_ends) {
+    this.name = name;
+    this.length = length;
+    this.start = start;
+    this.packed = packed;
+    this.n_starts = n_starts;
+    this.n_ends = n_ends;
+  }
+
+  public static PackedSequence load (ReferenceSequence rs, String name) throws IOException {
+    //
+    // null if the sequence isn't present.  Synchronizes on rs if it
+    // doesn't support concurrent access.
+    //
+    if (!rs.supports_concurrent_access()) {
+      synchronized (rs) {
+	return load_packed(rs, name);
+      }
+    }
+    return load_packed(rs, name);
+  }
+
+  private static PackedSequence load_packed (ReferenceSequence rs, String name) throws IOException {
+    if (rs instanceof CachedReferenceSequence &&
+	((CachedReferenceSequence) rs).get_source() instanceof TwoBitMappedFile) {
+      rs = ((CachedReferenceSequence) rs).get_source();
+      // the mapped file is already a cache, and packed
+    }
+    if (rs instanceof TwoBitMappedFile) {
+      return ((TwoBitMappedFile) rs).get_packed(name);
+      // no need to decode
+    } else {
+      byte[] seq = rs.get_all(name);
+      return seq == null ? null : pack(name, seq);
+    }
+  }
+
+  public static PackedSequence load_window (ReferenceSequence rs, String name, int length,
+					    int start, int end) throws IOException {
+    //
+    // bases from 0-based start (rounded down to a multiple of 4) to
+    // end, within a sequence of the given length
+    //
+    start = Math.max(0, Math.min(start, length)) & ~3;
+    end = Math.max(start, Math.min(end, length));
+    // e.g. reads mapped beyond the end of the reference
+    if (rs instanceof TwoBitMappedFile) {
+      return ((TwoBitMappedFile) rs).get_packed(name, start, end);
+    } else {
+      byte[] seq;
+      if (rs.supports_concurrent_access()) {
+	seq = rs.get_region(name, start + 1, end - start);
+      } else {
+	synchronized (rs) {
+	  seq = rs.get_region(name, start + 1, end - start);
+	}
+      }
+      return seq == null ? null : pack(name, length, start, seq);
+    }
+  }
+
+  public static PackedSequence pack (String name, byte[] seq) {
+    return pack(name, seq.length, 0, seq);
+  }
+
+  private static PackedSequence pack (String name, int length, int start, byte[] seq) {
+    byte[] packed = new byte[(seq.length + 3) >> 2];
+    int[] n_starts = new int[16];
+    int[] n_ends = new int[16];
+    int runs = 0;
+    for (int i = 0; i < seq.length; i++) {
+      int code = CODE[seq[i] & 0xff];
+      if (code < 0) {
+	if (runs > 0 && n_ends[runs - 1] == start + i) {
+	  n_ends[runs - 1]++;
+	} else {
+	  if (runs == n_starts.length) {
+	    n_starts = Arrays.copyOf(n_starts, runs * 2);
+	    n_ends = Arrays.copyOf(n_ends, runs * 2);
+	  }
+	  n_starts[runs] = start + i;
+	  n_ends[runs] = start + i + 1;
+	  runs++;
+	}
+	code = 0;
+      }
+      packed[i >> 2] |= code << (6 - ((i & 3) << 1));
+    }
+    return new PackedSequence(name, length, start, packed,
+			      Arrays.copyOf(n_starts, runs),
+			      Arrays.copyOf(n_ends, runs));
+  }
+
+  public int get_length() {
+    return length;
+  }
+
+  public boolean covers (int from, int to) {
+    //
+    // whether bases from 0-based from to to (exclusive) are held,
+    // ignoring any part beyond the ends of the sequence
+    //
+    return Math.max(from, 0) >= start &&
+      Math.min(to, length) <= start + ((long) packed.length << 2);
+  }
+
+  public int count_mismatches (int ref_i, byte[] read_bases, byte[] read_qualities,
+			       int read_i, int len, int min_quality) {
+    //
+    // count mismatches in an aligned block starting at 0-based ref_i:
+    // read and reference bases which are both ACGT but differ, where
+    // the read base has at least the minimum quality
+    //
+    int mismatches = 0;
+    int end = ref_i + len;
+    for (int n = TwoBitRecord.first_block(n_ends, ref_i); ref_i < end; n++) {
+      int stop = n < n_starts.length ? Math.min(n_starts[n], end) : end;
+      // comparable reference bases up to the next ambiguous run
+      while (ref_i < stop) {
+	int word = DECODE[packed[(ref_i - start) >> 2] & 0xff];
+	int j = ref_i & 3;
+	int k = Math.min(4, j + stop - ref_i);
+	// bases j to k - 1 of this packed byte
+	if (j == 0 && k == 4 &&
+	    word == ((read_bases[read_i] & 0xff) |
+		     ((read_bases[read_i + 1] & 0xff) << 8) |
+		     ((read_bases[read_i + 2] & 0xff) << 16) |
+		     (read_bases[read_i + 3] << 24))) {
+	  ref_i += 4;
+	  read_i += 4;
+	  // all 4 bases match
+	  continue;
+	}
+	for (; j < k; j++, ref_i++, read_i++) {
+	  byte base_read = read_bases[read_i];
+	  if (base_read != (byte) (word >> (j << 3)) &&
+	      read_qualities[read_i] >= min_quality &&
+	      IS_BASE[base_read & 0xff]) mismatches++;
+	}
+      }
+      if (n < n_starts.length && ref_i < end) {
+	int skip = Math.min(n_ends[n], end) - ref_i;
+	ref_i += skip;
+	read_i += skip;
+      }
+    }
+    return mismatches;
+  }
+
+}
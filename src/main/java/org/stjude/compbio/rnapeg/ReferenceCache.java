@@ -0,0 +1,117 @@
+package org.stjude.compbio.rnapeg;
+// packed reference sequences shared between threads
+// (e.g. SplicedReadWorkers processing shards of the same chromosome).
+//
+// Each sequence is loaded once, by the first thread to request it;
+// other threads wait for that load.  Callers release() a sequence when
+// finished with it; it is dropped once nobody is using it, unless
+// the cache retains sequences (e.g. for reuse by later samples in
+// SplicedReadReporter batch mode).
+// Returned sequences are shared (and immutable).
+//
+// A sequence may also be prefetched, i.e. loaded on the cache's
+// background thread before it's needed; the prefetcher counts as a
+// user until it releases the sequence.
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ReferenceCache {
+  private ReferenceSequence rs;
+  private HashMap<String,FutureTask<PackedSequence>> loads;
+  private HashMap<String,Integer> users;
+  private boolean retain = false;
+  private final ThreadPoolExecutor prefetcher;
+  // one prefetch at a time; the thread exits when idle
+
+  public ReferenceCache (ReferenceSequence rs) {
+    this.rs = rs;
+    loads = new HashMap<String,FutureTask<PackedSequence>>();
+    users = new HashMap<String,Integer>();
+    prefetcher = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+					  public Thread newThread (Runnable r) {
+					    Thread t = new Thread(r, "reference prefetch");
+					    t.setDaemon(true);
+					    return t;
+					  }
+					});
+    prefetcher.allowCoreThreadTimeOut(true);
+  }
+
+  public synchronized void set_retain (boolean retain) {
+    this.retain = retain;
+  }
+
+  public PackedSequence get (final String name) throws IOException {
+    FutureTask<PackedSequence> load;
+    synchronized (this) {
+      load = loads.get(name);
+      if (load == null) {
+	load = new FutureTask<PackedSequence>(new Callable<PackedSequence>() {
+	    public PackedSequence call() throws IOException {
+	      return load_sequence(name);
+	    }
+	  });
+	loads.put(name, load);
+      }
+      Integer count = users.get(name);
+      users.put(name, count == null ? 1 : count + 1);
+    }
+
+    load.run();
+    // if not already started: our own load, or a prefetch still
+    // queued behind others (a no-op once started elsewhere)
+
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  public void prefetch (final String name) {
+    FutureTask<PackedSequence> load;
+    synchronized (this) {
+      Integer count = users.get(name);
+      users.put(name, count == null ? 1 : count + 1);
+      if (loads.containsKey(name)) return;
+      // already loaded or loading
+      load = new FutureTask<PackedSequence>(new Callable<PackedSequence>() {
+	  public PackedSequence call() throws IOException {
+	    return load_sequence(name);
+	  }
+	});
+      loads.put(name, load);
+    }
+    prefetcher.execute(load);
+    // any error is reported to whoever get()s the sequence
+  }
+
+  public synchronized void release (String name) {
+    Integer count = users.get(name);
+    if (count == null) {
+      System.err.println("WARNING: release of unused reference " + name);  // debug
+    } else if (count > 1) {
+      users.put(name, count - 1);
+    } else {
+      users.remove(name);
+      if (!retain) loads.remove(name);
+    }
+  }
+
+  private PackedSequence load_sequence (String name) throws IOException {
+    PackedSequence refseq = PackedSequence.load(rs, name);
+    // concurrently with other loads if rs supports it
+    if (refseq == null) throw new IOException("can't load reference sequence " + name);
+    System.err.println("load reference for " + name + "...done");  // debug
+    return refseq;
+  }
+
+}
@@ -17,6 +17,10 @@ public interface ReferenceSequence {
   // sequence length
 
   public boolean supports_sequence_list();
+
+  public boolean supports_concurrent_access();
+  // whether methods may be called from several threads at once;
+  // if not, callers must synchronize on the ReferenceSequence
   public ArrayList<String> get_sequence_names();
 
 }
@@ -0,0 +1,301 @@
+package org.stjude.compbio.rnapeg;
+// binary reference "sidecar" (FILE.fa.rnapeg or FILE.2bit.rnapeg),
+// generated once from a FASTA or .2bit reference and then memory-mapped
+// by later runs, which skip .fai parsing and FASTA decoding entirely.
+//
+// The sidecar is a .2bit file (packed bases, N and mask blocks, in
+// sequence order), followed by a trailer which .2bit readers ignore:
+//
+//   MD5 of each sequence, 16 bytes each, in file order
+//   source file size (long)
+//   source file modification time (long)
+//   sequence count (int)
+//   version (int)
+//   magic (int)
+//
+// MD5s are as for the SAM/CRAM M5 tag (upper case bases).  The source
+// size and modification time decide whether the sidecar is current.
+// As with faToTwoBit, ambiguity codes other than N are stored as N.
+//
+// Usage: ReferenceSidecar FILE.fa|FILE.2bit ...  (builds sidecars), or
+// SplicedReadReporter -reference-sidecar to build one on first use.
+
+import java.io.*;
+import java.util.*;
+
+public class ReferenceSidecar extends TwoBitMappedFile {
+  public static final String SUFFIX = ".rnapeg";
+  private static final int MAGIC = 0x52504753;
+  private static final int VERSION = 1;
+  private static final int TRAILER_SIZE = 28;
+
+  private final long source_size, source_mtime;
+  private final HashMap<String,String> md5s;
+
+  public ReferenceSidecar (File sidecar) throws IOException {
+    super(sidecar);
+    long pos = mf.size() - TRAILER_SIZE;
+    if (pos < 0 ||
+	mf.read_int(pos + 24, true) != MAGIC ||
+	mf.read_int(pos + 20, true) != VERSION) {
+      throw new IOException("not a current reference sidecar: " + sidecar);
+    }
+    source_size = read_long(pos);
+    source_mtime = read_long(pos + 8);
+
+    ArrayList<String> names = get_sequence_names();
+    int count = mf.read_int(pos + 16, true);
+    if (count != names.size()) throw new IOException("sequence count mismatch in " + sidecar);
+    md5s = new HashMap<String,String>();
+    pos -= 16L * count;
+    byte[] digest = new byte[16];
+    for (String name : names) {
+      mf.read(pos, digest, 0, digest.length);
+      md5s.put(name, MD5Util.digest2hex(digest));
+      pos += digest.length;
+    }
+  }
+
+  public String get_md5 (String sequence_name) {
+    //
+    // null if not present
+    //
+    TwoBitRecord r = get_record(sequence_name);
+    return r == null ? null : md5s.get(r.name);
+  }
+
+  public long get_source_size() {
+    return source_size;
+  }
+
+  public long get_source_mtime() {
+    return source_mtime;
+  }
+
+  private long read_long (long pos) {
+    return ((long) mf.read_int(pos, true) << 32) | (mf.read_int(pos + 4, true) & 0xffffffffL);
+  }
+
+  public static File get_sidecar_file (String source_file) {
+    return new File(source_file + SUFFIX);
+  }
+
+  public static boolean is_current (File source, File sidecar) {
+    //
+    // whether the sidecar was built from the source as it is now
+    //
+    if (!sidecar.exists()) return false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(sidecar, "r");
+      try {
+	if (raf.length() < TRAILER_SIZE) return false;
+	raf.seek(raf.length() - TRAILER_SIZE);
+	long size = raf.readLong();
+	long mtime = raf.readLong();
+	raf.readInt();
+	int version = raf.readInt();
+	int magic = raf.readInt();
+	return magic == MAGIC && version == VERSION &&
+	  size == source.length() && mtime == source.lastModified();
+      } finally {
+	raf.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public static ReferenceSequence open (String source_file, boolean fasta) throws IOException {
+    //
+    // automatic mode: open a FASTA (.fai indexed) or .2bit reference
+    // via its sidecar, (re)building the sidecar if it's missing or out
+    // of date.  If it can't be written (e.g. read-only directory), the
+    // source itself is used.
+    //
+    File source = new File(source_file);
+    File sidecar = get_sidecar_file(source_file);
+    if (is_current(source, sidecar)) {
+      try {
+	return new ReferenceSidecar(sidecar);
+      } catch (IOException e) {
+	System.err.println("WARNING: can't read reference sidecar " + sidecar + ": " + e);  // debug
+      }
+    }
+
+    ReferenceSequence rs;
+    if (fasta) {
+      rs = new FASTAIndexedFAI(source_file);
+    } else {
+      rs = new TwoBitMappedFile(source_file);
+    }
+    try {
+      build(rs, source, sidecar);
+      return new ReferenceSidecar(sidecar);
+    } catch (IOException e) {
+      System.err.println("WARNING: can't write reference sidecar " + sidecar + ": " + e);  // debug
+      return rs;
+    }
+  }
+
+  public static void build (ReferenceSequence rs, File source, File sidecar) throws IOException {
+    //
+    // write to a temporary file which is then renamed, so concurrent
+    // runs never see a partial sidecar
+    //
+    System.err.print("writing reference sidecar " + sidecar + "...");  // debug
+    long source_size = source.length();
+    long source_mtime = source.lastModified();
+    ArrayList<String> names = rs.get_sequence_names();
+    File tmp = File.createTempFile(sidecar.getName(), ".tmp", sidecar.getAbsoluteFile().getParentFile());
+
+    try {
+      MD5Util md5;
+      try {
+	md5 = new MD5Util();
+      } catch (java.security.NoSuchAlgorithmException e) {
+	throw new IOException(e);
+      }
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+      long[] index_positions = new long[names.size()];
+      long[] offsets = new long[names.size()];
+      byte[][] digests = new byte[names.size()][];
+      try {
+	out.writeInt(TWOBIT_SIGNATURE);
+	out.writeInt(0);
+	// version
+	out.writeInt(names.size());
+	out.writeInt(0);
+	// reserved
+
+	for (int i = 0; i < names.size(); i++) {
+	  byte[] name = names.get(i).getBytes("US-ASCII");
+	  if (name.length > 255) throw new IOException("sequence name too long for .2bit: " + names.get(i));
+	  out.writeByte(name.length);
+	  out.write(name);
+	  index_positions[i] = out.size();
+	  out.writeInt(0);
+	  // record offset, filled in below
+	}
+
+	long pos = out.size();
+	for (int i = 0; i < names.size(); i++) {
+	  byte[] seq = rs.get_all(names.get(i));
+	  if (seq == null) throw new IOException("can't load reference sequence " + names.get(i));
+	  if (pos > 0xffffffffL) throw new IOException("reference too large for .2bit offsets");
+	  offsets[i] = pos;
+
+	  PackedSequence ps = PackedSequence.pack(names.get(i), seq);
+	  int[][] mask = get_mask_blocks(seq);
+	  out.writeInt(seq.length);
+	  write_blocks(out, ps.n_starts, ps.n_ends);
+	  write_blocks(out, mask[0], mask[1]);
+	  out.writeInt(0);
+	  // reserved
+	  out.write(ps.packed);
+	  pos += 4 + (4 + 8L * ps.n_starts.length) + (4 + 8L * mask[0].length) + 4 + ps.packed.length;
+	  // DataOutputStream.size() is only an int
+
+	  for (int j = 0; j < seq.length; j++) {
+	    if (seq[j] >= 'a' && seq[j] <= 'z') seq[j] -= 'a' - 'A';
+	  }
+	  md5.reset();
+	  md5.update(seq);
+	  digests[i] = md5.digest();
+	}
+
+	for (byte[] digest : digests) {
+	  out.write(digest);
+	}
+	out.writeLong(source_size);
+	out.writeLong(source_mtime);
+	out.writeInt(names.size());
+	out.writeInt(VERSION);
+	out.writeInt(MAGIC);
+      } finally {
+	out.close();
+      }
+
+      RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+      try {
+	for (int i = 0; i < names.size(); i++) {
+	  raf.seek(index_positions[i]);
+	  raf.writeInt((int) offsets[i]);
+	}
+      } finally {
+	raf.close();
+      }
+
+      if (!tmp.renameTo(sidecar)) throw new IOException("can't rename " + tmp + " to " + sidecar);
+    } finally {
+      tmp.delete();
+      // if not renamed
+    }
+    System.err.println("done");  // debug
+  }
+
+  private static void write_blocks (DataOutputStream out, int[] starts, int[] ends) throws IOException {
+    out.writeInt(starts.length);
+    for (int start : starts) {
+      out.writeInt(start);
+    }
+    for (int i = 0; i < starts.length; i++) {
+      out.writeInt(ends[i] - starts[i]);
+    }
+  }
+
+  private static int[][] get_mask_blocks (byte[] seq) {
+    //
+    // runs of lower case (soft-masked) bases
+    //
+    int[] starts = new int[16];
+    int[] ends = new int[16];
+    int runs = 0;
+    for (int i = 0; i < seq.length; i++) {
+      if (seq[i] < 'a' || seq[i] > 'z') continue;
+      if (runs > 0 && ends[runs - 1] == i) {
+	ends[runs - 1]++;
+      } else {
+	if (runs == starts.length) {
+	  starts = Arrays.copyOf(starts, runs * 2);
+	  ends = Arrays.copyOf(ends, runs * 2);
+	}
+	starts[runs] = i;
+	ends[runs] = i + 1;
+	runs++;
+      }
+    }
+    return new int[][] {
+      Arrays.copyOf(starts, runs),
+      Arrays.copyOf(ends, runs)
+    };
+  }
+
+  public static void main (String[] argv) {
+    //
+    // ReferenceSidecar FILE.fa|FILE.2bit ...
+    // (re)build sidecars; FASTA files must be .fai indexed
+    //
+    try {
+      for (String fn : argv) {
+	ReferenceSequence rs;
+	if (fn.toLowerCase().endsWith(".2bit")) {
+	  rs = new TwoBitMappedFile(fn);
+	} else {
+	  rs = new FASTAIndexedFAI(fn);
+	}
+	File sidecar = get_sidecar_file(fn);
+	build(rs, new File(fn), sidecar);
+	ReferenceSidecar rsc = new ReferenceSidecar(sidecar);
+	for (String name : rsc.get_sequence_names()) {
+	  System.out.println(name + "\t" + rsc.get_length(name) + "\t" + rsc.get_md5(name));  // debug
+	}
+      }
+    } catch (Exception e) {
+      System.err.println("ERROR: " + e);  // debug
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+}
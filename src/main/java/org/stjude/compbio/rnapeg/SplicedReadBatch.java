@@ -0,0 +1,72 @@
+package org.stjude.compbio.rnapeg;
+// a batch of reads passed between the stages of the SplicedReadWorker
+// pipeline (-walk-threads): reader -> CIGAR walkers -> aggregator.
+// All reads in a batch are mapped to the same reference sequence.
+// Batches are reused, along with their SplicedReadWalks.
+
+import htsjdk.samtools.*;
+
+public class SplicedReadBatch {
+  static final int BATCH_SIZE = 1000;
+
+  SplicedReadWalk[] walks;
+  int size;
+  PackedSequence refseq;
+
+  boolean end = false;
+  // marker: no more batches for this query
+  private boolean walked = false;
+  private Throwable error = null;
+
+  public SplicedReadBatch() {
+    this(BATCH_SIZE);
+  }
+
+  public SplicedReadBatch (int capacity) {
+    walks = new SplicedReadWalk[capacity];
+    for (int i = 0; i < capacity; i++) {
+      walks[i] = new SplicedReadWalk();
+    }
+  }
+
+  public void reset (PackedSequence refseq) {
+    this.refseq = refseq;
+    size = 0;
+    end = false;
+    synchronized (this) {
+      walked = false;
+      error = null;
+    }
+  }
+
+  public boolean is_full() {
+    return size == walks.length;
+  }
+
+  public void add (SAMRecord sr) {
+    walks[size++].sr = sr;
+  }
+
+  public void release_records() {
+    for (int i = 0; i < size; i++) {
+      walks[i].sr = null;
+    }
+  }
+
+  public synchronized void set_walked (Throwable error) {
+    walked = true;
+    this.error = error;
+    notifyAll();
+  }
+
+  public synchronized void wait_walked() throws InterruptedException {
+    while (!walked) {
+      wait();
+    }
+  }
+
+  public synchronized Throwable get_error() {
+    return error;
+  }
+
+}
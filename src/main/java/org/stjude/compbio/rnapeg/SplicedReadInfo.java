@@ -2,11 +2,16 @@ package org.stjude.compbio.rnapeg;
 
 public class SplicedReadInfo implements Comparable {
   String reference_name;
+  int contig_id = ContigDictionary.NONE;
+  // reference_name in the reporter's ContigDictionary, if known
   Integer segment_1_end, segment_2_start;
   // reference base numbers (1-based)
   int counter, counter_plus, counter_minus;
   // count of supporting reads, and reads with support on + and - strands
   int counter_perfect, counter_clean, counter_flanking_qc;
+  int flush_index;
+  // multi-threaded mode: index of the first read in the unit which
+  // starts after this junction (i.e. the read frontier has passed it)
 
   public SplicedReadInfo(String reference_name, int segment_1_end, int segment_2_start) {
     this.reference_name = reference_name;
@@ -40,6 +45,17 @@ public class SplicedReadInfo implements Comparable {
     return counter;
   }
 
+  public void merge (SplicedReadInfo other) {
+    // combine counts for the same junction from another shard
+    counter += other.counter;
+    counter_plus += other.counter_plus;
+    counter_minus += other.counter_minus;
+    counter_perfect += other.counter_perfect;
+    counter_clean += other.counter_clean;
+    counter_flanking_qc += other.counter_flanking_qc;
+    if (other.flush_index > flush_index) flush_index = other.flush_index;
+  }
+
   // begin Comparable interface
   public int compareTo(Object other) {
     SplicedReadInfo o = (SplicedReadInfo) other;
@@ -3,10 +3,10 @@ package org.stjude.compbio.rnapeg;
 import htsjdk.samtools.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-public class SplicedReadReporter {
+public class SplicedReadReporter implements Cloneable {
   File bam;
-  HashMap<String,SplicedReadInfo> events_by_name;
   IntronCache ic;
   //  int minimum_observations_to_report = 5;
   int minimum_observations_to_report = 1;
@@ -91,6 +91,10 @@ public class SplicedReadReporter {
   double MAX_JUNK_RATIO_FOR_CLEAN_CALL = 0.05;
 
   ReferenceSequence reference_sequence = null;
+  ContigDictionary contigs = new ContigDictionary();
+  // shared with the IntronCache (and batch mode samples)
+  int[] bam_contig_ids;
+  // contig ID of each BAM reference, by reference index
 
   boolean JUNK_REPORT = false;
   double JUNK_REPORT_MIN_RATIO_TO_COMPLAIN = 0.10;
@@ -101,6 +105,36 @@ public class SplicedReadReporter {
 
   int MIN_SPAN = 0;
 
+  int threads = 1;
+  // extraction threads; if > 1, each BAM reference is processed by
+  // its own SplicedReadWorker
+  int shard_size = 0;
+  // multi-threaded mode: if > 0, also split references into shards
+  // of this many bases, so large chromosomes are processed in parallel
+  ReferenceCache reference_cache = null;
+  // multi-threaded or batch mode: reference sequences shared between
+  // workers (and samples)
+  int walk_threads = 0;
+  // if > 0, each SplicedReadWorker reads, walks and aggregates records
+  // in a pipeline, with this many threads for the CIGAR walk
+  boolean reference_window = false;
+  // hold only a window of each reference around the current reads
+  // (per worker) rather than whole chromosomes
+  boolean prefetch_reference = false;
+  // single-threaded extraction: load the next reference in the
+  // background while the current one is processed
+
+  int broken_edge_reads, broken_read_index, broken_qual_index;
+
+  int replay_reference_i, replay_checkpoint;
+  // multi-threaded mode: single-threaded reference/checkpoint state,
+  // for reproducing flush order
+
+  JunctionMatrix matrix = null;
+  int matrix_sample;
+  // cohort matrix mode: junctions are added to the matrix for this
+  // sample rather than written
+
   public SplicedReadReporter() {
     ic = null;
     //    query_region = new SAMRegion();
@@ -160,6 +194,7 @@ public class SplicedReadReporter {
 
   public void set_intron_cache (IntronCache ic) {
     this.ic = ic;
+    contigs = ic.get_contigs();
   }
 
   public void set_write_header (boolean v) {
@@ -203,16 +238,37 @@ public class SplicedReadReporter {
     minimum_observations_to_report = count;
   }
 
+  public void set_threads (int threads) {
+    this.threads = threads;
+  }
+
+  public void set_shard_size (int shard_size) {
+    this.shard_size = shard_size;
+  }
+
+  public void set_walk_threads (int walk_threads) {
+    this.walk_threads = walk_threads;
+  }
+
+  public void set_reference_window (boolean v) {
+    reference_window = v;
+  }
+
+  public void set_prefetch_reference (boolean v) {
+    prefetch_reference = v;
+  }
+
   public void report() throws IOException{
     if (bam == null) throw new IOException("no bam specified (-bam)");
-    if (wf == null) throw new IOException("no outfile specified (-of)");
+    if (wf == null && matrix == null) throw new IOException("no outfile specified (-of)");
     if (reference_sequence == null) throw new IOException("no reference sequence specified: use -2bit FILE or -fasta FILE (.fai indexed)");
 
     wrote_header = write_header ? false : true;
     junction_counter = new HashCounter();
 
-    events_by_name = new HashMap<String,SplicedReadInfo>();
     SamReader sfr = SamReaderFactory.makeDefault().open(bam);
+    bam_contig_ids = contigs.add_header(sfr.getFileHeader());
+    contigs.add_reference(reference_sequence);
 
     //
     // check compatibility between reference sequence and BAM:
@@ -242,20 +298,13 @@ public class SplicedReadReporter {
       }
     }
 
-    CigarOperator co;
-    int len;
-    int current_reference_i = -1;
-    String current_reference_name = null;
-    int checkpoint = 0;
-    byte[] refseq = null;
-
     if (READ_NAME_RESTRICT_MODE) {
       System.err.println("DEBUG: restricting to read " + READ_NAME_RESTRICT_STRING);  // debug
     }
 
-    int broken_edge_reads = 0;
-    int broken_read_index = 0;
-    int broken_qual_index = 0;
+    broken_edge_reads = 0;
+    broken_read_index = 0;
+    broken_qual_index = 0;
 
     if (query_regions.size() == 0) add_query_region();
     // if no query ranges set by user, add a blank region,
@@ -267,341 +316,270 @@ public class SplicedReadReporter {
     System.err.println("extracting primary reads only?: " + PRIMARY_READ_MODE);  // debug
     System.err.println("excluding optical/PCR duplicates?: " + EXCLUDE_DUPLICATES);  // debug
 
-    final boolean VERBOSE = false;
-    // debug
-
-    for (SAMRegion query_region : query_regions) {
-      SAMQuery sq = new SAMQuery(sfr);
-      System.err.println("query region: " + query_region);  // debug
-
-      SAMRecordIterator query = sq.query(query_region);
-
-      while (query.hasNext()) {
-	SAMRecord sr = query.next();
-
-	if (sr.getReadUnmappedFlag()) continue;
-
-	if (PRIMARY_READ_MODE && sr.getNotPrimaryAlignmentFlag()) continue;
+    if (threads > 1) {
+      report_parallel(sfr);
+    } else {
+      boolean own_cache = prefetch_reference && reference_cache == null;
+      if (own_cache) reference_cache = new ReferenceCache(reference_sequence);
+      // prefetching is done via the cache
+      SplicedReadWorker worker = new SplicedReadWorker(this, sfr, false);
+      for (SAMRegion query_region : query_regions) {
+	worker.process(query_region);
+      }
+      add_broken_counts(worker);
+      worker.release_reference();
+      if (own_cache) reference_cache = null;
+    }
 
-	if (EXCLUDE_DUPLICATES && sr.getDuplicateReadFlag()) continue;
+    if (wf != null) wf.finish();
+    if (rpt_reads != null) rpt_reads.close();
 
-	if (READ_NAME_RESTRICT_MODE &&
-	    !(sr.getReadName().equals(READ_NAME_RESTRICT_STRING))) continue;
+    if (broken_edge_reads > 0) {
+      System.err.println("reads mapped beyond end of reference: " + broken_edge_reads);  // debug
+    }
 
-	if (sr.getReferenceIndex() != current_reference_i) {
-	  flush_check(true, null);
-	  current_reference_i = sr.getReferenceIndex();
-	  current_reference_name = Chromosome.standardize_name(sr.getReferenceName());
-	  // e.g. .bed format requires "chr1", not "1"
+    if (broken_read_index > 0) {
+      System.err.println("reads where CIGAR goes past read end: " + broken_read_index);  // debug
+    }
+    if (broken_qual_index > 0) {
+      System.err.println("reads where CIGAR goes past quality array end: " + broken_qual_index);  // debug
+    }
 
-	  //	if (VERBOSE) System.err.println("new reference: " + current_reference_name);  // debug
-	  System.err.println("processing reference: " + current_reference_name);  // debug
+  }
 
-	  if (reference_sequence != null) {
-	    System.err.print("load reference for " + current_reference_name + "...");
-	    refseq = reference_sequence.get_all(current_reference_name);
-	    // FIX ME: may need disambiguation/lookup
-	    for (int i = 0; i < refseq.length; i++) {
-	      refseq[i] = (byte) Character.toUpperCase(refseq[i]);
-	    }
-	    System.err.println("done");  // debug
-	  }
+  private void report_parallel (SamReader sfr) throws IOException {
+    //
+    // extract each BAM reference (or query region) in its own thread,
+    // then write results in the same order as single-threaded mode.
+    //
+    if (rpt_reads != null) throw new IOException("read report (-read-report) requires single-threaded extraction");
 
-	} else if (++checkpoint % flush_check_interval == 0) {
-	  flush_check(false, sr);
+    ArrayList<SplicedReadUnit> units = new ArrayList<SplicedReadUnit>();
+    ChromosomeDisambiguator cd = new ChromosomeDisambiguator(sfr);
+    int shard_count = 0;
+    for (SAMRegion query_region : query_regions) {
+      if (query_region.tname == null) {
+	// entire BAM: one unit per reference, in header order
+	for (SAMSequenceRecord ssr : sfr.getFileHeader().getSequenceDictionary().getSequences()) {
+	  SplicedReadUnit unit = new SplicedReadUnit(new SAMRegion(ssr.getSequenceName()));
+	  unit.add_shards(shard_size, ssr.getSequenceLength());
+	  units.add(unit);
+	  shard_count += unit.shards.size();
 	}
+      } else {
+	SplicedReadUnit unit = new SplicedReadUnit(query_region);
+	unit.add_shards(shard_size, cd.get_length(query_region.tname));
+	units.add(unit);
+	shard_count += unit.shards.size();
+      }
+    }
+    System.err.println("extraction threads: " + threads + " units: " + units.size() + " shards: " + shard_count);  // debug
+
+    boolean own_cache = reference_cache == null;
+    if (own_cache) reference_cache = new ReferenceCache(reference_sequence);
+    // batch mode: cache is shared with other samples
+
+    final LinkedBlockingQueue<SplicedReadWorker> idle = new LinkedBlockingQueue<SplicedReadWorker>();
+    ArrayList<SplicedReadWorker> workers = new ArrayList<SplicedReadWorker>();
+    for (int i = 0; i < threads; i++) {
+      SplicedReadWorker worker = new SplicedReadWorker(this, SamReaderFactory.makeDefault().open(bam), true);
+      // each worker has its own reader and reference buffer
+      workers.add(worker);
+      idle.add(worker);
+    }
 
-	int ref_base = sr.getUnclippedStart();
-
-	if (VERBOSE) System.err.println("new read:" + sr.getReadName() + " unclipped_start:" + ref_base);
-
-	Cigar c = sr.getCigar();
-
-	HashMap<SplicedReadInfo,SplicedReadFlankingInfo> sri2left = new HashMap<SplicedReadInfo,SplicedReadFlankingInfo>();
-	HashMap<SplicedReadInfo,SplicedReadFlankingInfo> sri2right = new HashMap<SplicedReadInfo,SplicedReadFlankingInfo>();
-      
-	SplicedReadFlankingInfo fi = new SplicedReadFlankingInfo();
-
-	byte[] read_bases = sr.getReadBases();
-	byte[] read_qualities = sr.getBaseQualities();
-	int read_i = 0;
-	// for mismatch detection of course it's desirable to use
-	// SAMRecord.getAlignmentBlocks() but then these have to be mapped
-	// to the appropriate flanking regions.
-
-	int i;
-	byte base_ref;
-
-	ArrayList<SplicedReadInfo> sri_ordered = new ArrayList<SplicedReadInfo>();
-	// we could use LinkedHashMap for sri2left etc., but that
-	// doesn't have get() methods
-
-	for (CigarElement ce : c.getCigarElements()) {
-	  co = ce.getOperator();
-	  len = ce.getLength();
-	  //	System.err.println("op " + co + " " + len);  // debug
-	  if (co.equals(CigarOperator.MATCH_OR_MISMATCH)) {
-	    for (i = 0; i < len; i++, ref_base++, read_i++) {
-	      fi.last_read_i = read_i;
-	      if (ref_base > refseq.length) {
-		System.err.println("WARNING: read mapped beyond end of reference: " + sr.getReadName() + " at " + sr.getReferenceName() + "." + sr.getAlignmentStart());  // debug
-		broken_edge_reads++;
-		break;
-	      }
-	      base_ref = refseq[ref_base - 1];
-
-	      if (read_i >= read_bases.length) {
-		System.err.println("WARNING: read index beyond end of read bases: " + sr.getReadName() + " at " + sr.getReferenceName() + "." + sr.getAlignmentStart());
-		broken_read_index++;
-		break;
-	      }
-	      if (read_i >= read_qualities.length) {
-		System.err.println("WARNING: read index beyond end of quality array: " + sr.getReadName() + " at " + sr.getReferenceName() + "." + sr.getAlignmentStart());
-		broken_qual_index++;
-		break;
-	      }
-
-	      if (
-		  base_ref != read_bases[read_i] &&
-		  read_qualities[read_i] >= MIN_QUALITY_FOR_MISMATCH_CHECK &&
-		  (read_bases[read_i] == 'A' ||
-		   read_bases[read_i] == 'C' ||
-		   read_bases[read_i] == 'G' ||
-		   read_bases[read_i] == 'T') &&
-		  (base_ref == 'A' ||
-		   base_ref == 'C' ||
-		   base_ref == 'G' ||
-		   base_ref == 'T')
-		  ) {
-		fi.count_aligned_mismatched_bases++;
-		if (VERBOSE) System.err.println("mismatch base");  // debug
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ArrayList<Future<SplicedReadShard>> results = new ArrayList<Future<SplicedReadShard>>();
+    for (SplicedReadUnit unit : units) {
+      for (final SplicedReadShard shard : unit.shards) {
+	results.add(pool.submit(new Callable<SplicedReadShard>() {
+	    public SplicedReadShard call() throws Exception {
+	      SplicedReadWorker worker = idle.take();
+	      try {
+		worker.process_shard(shard);
+	      } finally {
+		idle.put(worker);
 	      }
+	      return shard;
 	    }
-	    fi.count_aligned_bases += len;
-	  } else if (co.equals(CigarOperator.SOFT_CLIP)) {
-	    ref_base += len;
-	    read_i += len;
-	    fi.count_soft_clip_bases += len;
-	  } else if (co.equals(CigarOperator.SKIPPED_REGION)) {
-	    int seq1_end = ref_base - 1;
-	    // base # before skip
-	    int seq2_start = ref_base + len;
-	    // base # after skip
-	    SplicedReadInfo sri = track_site(current_reference_name, seq1_end, seq2_start, sr);
-	    //	  System.err.println("money! splice=" + seq1_end + "-" + seq2_start + " insertion:" + has_insertion + " del:"+has_deletion + " read="+ sr.getReadName());
-
-	    sri_ordered.add(sri);
-
-	    sri2left.put(sri, fi);
-	    // the current accumulator is shared, it provides right-flanking
-	    // information for the previous skip (if any) as well as 
-	    // left-flanking information for this skip
-
-	    fi = new SplicedReadFlankingInfo();
-	    sri2right.put(sri, fi);
-	    // start new accumulator for right-flanking info for this skip
-
-	    ref_base += len;
-	    // read index: since a skip, no change
-	  } else if (co.equals(CigarOperator.INSERTION)) {
-	    // insertion does not affect reference sequence location
-	    fi.count_inserted_bases += len;
-	    read_i += len;
-	    // inserted nucleotides appear in the read but not the reference
-	  } else if (co.equals(CigarOperator.DELETION)) {
-	    fi.count_deleted_bases += len;
-	    ref_base += len;
-	    // deleted nucleotides appear in the reference but not the read
-	  } else if (co.equals(CigarOperator.HARD_CLIP)) {
-	    // hard clips are in the reference (because we are using unclipped start)
-	    // but not the sequence.
-	    ref_base += len;
-	  } else {
-	    System.err.println("unhandled CIGAR operator " + co);  // debug
-	    System.exit(1);
-	  }
-	}
-
-	// CIGAR parsed:
-	// evaluate left and right flanking nt and set QC flag
+	  }));
+      }
+    }
 
-	SplicedReadInfo sri_first = null;
-	SplicedReadInfo sri_last = null;
-	if (sri_ordered.size() > 0) {
-	  sri_first = sri_ordered.get(0);
-	  sri_last = sri_ordered.get(sri_ordered.size() - 1);
+    try {
+      replay_reference_i = -1;
+      replay_checkpoint = 0;
+      int ri = 0;
+      for (SplicedReadUnit unit : units) {
+	for (int i = 0; i < unit.shards.size(); i++) {
+	  results.get(ri++).get();
 	}
+	unit.merge_shards();
+	write_unit(unit);
+	unit.junctions = null;
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    } finally {
+      pool.shutdownNow();
+    }
 
-	for (SplicedReadInfo sri : sri2left.keySet()) {
-	  //
-	  //  foreach junction supported by read...
-	  //
-	  SplicedReadFlankingInfo fi_left = sri2left.get(sri);
-	  SplicedReadFlankingInfo fi_right = sri2right.get(sri);
-
-	  double junk_ratio_l = fi_left.get_junk_ratio();
-	  double junk_ratio_r = fi_right.get_junk_ratio();
-
-	  //
-	  //  debug output for troubleshooting / pipeline QC:
-	  //
-	  boolean complain_l = JUNK_REPORT &&
-	    junk_ratio_l >= JUNK_REPORT_MIN_RATIO_TO_COMPLAIN &&
-	    fi_left.count_aligned_bases >= JUNK_REPORT_MIN_LENGTH_TO_COMPLAIN;
-
-	  boolean complain_r = JUNK_REPORT &&
-	    junk_ratio_r >= JUNK_REPORT_MIN_RATIO_TO_COMPLAIN &&
-	    fi_right.count_aligned_bases >= JUNK_REPORT_MIN_LENGTH_TO_COMPLAIN;
-
-	  if (complain_l || complain_r) {
-
-	    System.err.print(sri.get_name() + 
-			     " read=" + sr.getReadName() + 
-			     " CIGAR=" + sr.getCigar());
-
-	    System.err.print(" l_mm_count=" + fi_left.count_aligned_mismatched_bases);  // debug
-
-	    if (complain_l) {
-	      System.err.print(" LEFT:" +
-			       " aligned=" + fi_left.count_aligned_bases + 
-			       " junk=" + fi_left.get_junk_ratio() + 
-			       " mm=" + fi_left.get_junk_ratio_mismatches() +
-			       " sc=" + fi_left.get_junk_ratio_soft_clip() +
-			       " indel=" + fi_left.get_junk_ratio_indel() 
-			       );
-	    }
-	    if (complain_r) {
-	      System.err.print(
-			       " RIGHT:" +
-			       " aligned=" + fi_right.count_aligned_bases + 
-			       " junk=" + fi_right.get_junk_ratio() + 
-			       " mm=" + fi_right.get_junk_ratio_mismatches() +
-			       " sc=" + fi_right.get_junk_ratio_soft_clip() +
-			       " indel=" + fi_right.get_junk_ratio_indel() 
-			       );
-	    }
-	    System.err.println("");  // debug
-	  }
+    for (SplicedReadWorker worker : workers) {
+      add_broken_counts(worker);
+      worker.release_reference();
+      worker.get_reader().close();
+    }
+    if (own_cache) reference_cache = null;
+  }
 
-	  boolean mapping_perfect = false;
-	  boolean mapping_clean = false;
-
-	  if (junk_ratio_l == 0 && junk_ratio_r == 0) {
-	    mapping_perfect = true;
-	    sri.counter_perfect++;
-	    //	  sri.counter_clean++;
-	    // should we also count perfect reads as "clean" (good-enough) reads?
-	  } else if (junk_ratio_l <= MAX_JUNK_RATIO_FOR_CLEAN_CALL &&
-		     junk_ratio_r <= MAX_JUNK_RATIO_FOR_CLEAN_CALL) {
-	    mapping_clean = true;
-	    sri.counter_clean++;
-	  }
+  public void report_batch (String list_file, int sample_threads, String matrix_file) throws IOException {
+    //
+    // extract several BAMs with the same settings, sharing the
+    // IntronCache and reference sequences between them.  The list file
+    // has one BAM per line, followed by a tab and its outfile.
+    // Reference sequences are retained for reuse by later samples,
+    // so the entire genome may be held in memory.
+    //
+    // If matrix_file is specified, instead write a single cohort
+    // junction x sample matrix of known and novel junctions.  The
+    // second column of the list is then the sample name (default:
+    // BAM filename without .bam).
+    //
+    if (bam != null || wf != null) throw new IOException("-bam and -of can't be used with -bam-list");
+    if (rpt_reads != null) throw new IOException("read report (-read-report) can't be used with -bam-list");
+    if (reference_sequence == null) throw new IOException("no reference sequence specified: use -2bit FILE or -fasta FILE (.fai indexed)");
+    if (matrix_file != null && ic == null) throw new IOException("-matrix requires -refflat for known/novel annotation");
+
+    ArrayList<File> bams = new ArrayList<File>();
+    final ArrayList<String> outfiles = new ArrayList<String>();
+    BufferedReader br = new BufferedReader(new FileReader(list_file));
+    String line;
+    while ((line = br.readLine()) != null) {
+      if (line.trim().length() == 0 || line.startsWith("#")) continue;
+      String[] f = line.split("\t");
+      if (matrix_file != null && f.length == 1) {
+	f = new String[] { f[0], new File(f[0]).getName().replaceFirst("\\.bam$", "") };
+      }
+      if (f.length != 2) throw new IOException("expected BAM and outfile separated by a tab in " + list_file + ": " + line);
+      if (outfiles.contains(f[1])) throw new IOException("duplicate outfile or sample " + f[1] + " in " + list_file);
+      bams.add(new File(f[0]));
+      outfiles.add(f[1]);
+    }
+    br.close();
+    if (bams.size() == 0) throw new IOException("no BAMs in " + list_file);
+    System.err.println("batch mode: samples: " + bams.size() + " sample threads: " + sample_threads);  // debug
+
+    if (matrix_file != null) {
+      matrix = new JunctionMatrix();
+      for (String sample : outfiles) {
+	matrix.add_sample(sample);
+      }
+    }
 
-	  //	boolean flank_qc = (fi_left.count_aligned_bases >= MIN_FLANKING_NT_FOR_QC &&
-	  //			    fi_right.count_aligned_bases >= MIN_FLANKING_NT_FOR_QC);
-	  boolean flank_qc = get_flank_qc(fi_left, sri.equals(sri_first)) &&
-	    get_flank_qc(fi_right, sri.equals(sri_last));
-
-	  //	System.err.println(sri.get_name() + " L=" + flank_l + " R=" + flank_r + " qc=" + flank_qc);  // debug
-	  if (flank_qc) sri.increment_flanking_qc();
-
-	  if (rpt_reads != null) {
-	    //
-	    // write read-level report for each supported junction:
-	    //
-	    rpt_reads.set_value("read_name", sr.getReadName());
-	    rpt_reads.set_value("strand", sr.getReadNegativeStrandFlag() ? "-" : "+");
-	    rpt_reads.set_value("reference", Chromosome.standardize_name(sri.reference_name));
-	    rpt_reads.set_value("junction_start", Integer.toString(sri.segment_1_end));
-	    rpt_reads.set_value("junction_end", Integer.toString(sri.segment_2_start));
-	    rpt_reads.set_value("flanking_nt_left", Integer.toString(fi_left.count_aligned_bases));
-	    rpt_reads.set_value("flanking_nt_right", Integer.toString(fi_right.count_aligned_bases));
-	    rpt_reads.set_value("mapping_perfect", mapping_perfect ? "1" : "0");
-	    rpt_reads.set_value("mapping_clean", mapping_clean ? "1" : "0");
-
-	    boolean usable = true;
-	    if (RESTRICT_JUNCTION_START > 0 && sri.segment_1_end != RESTRICT_JUNCTION_START) usable = false;
-	    if (RESTRICT_JUNCTION_END > 0 && sri.segment_2_start != RESTRICT_JUNCTION_END) usable = false;
-
-	    if (usable) rpt_reads.end_row();
+    reference_cache = new ReferenceCache(reference_sequence);
+    reference_cache.set_retain(true);
+
+    ExecutorService pool = Executors.newFixedThreadPool(sample_threads);
+    ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i = 0; i < bams.size(); i++) {
+      final SplicedReadReporter sample = get_sample_reporter(bams.get(i));
+      final String outfile = outfiles.get(i);
+      sample.matrix_sample = i;
+      results.add(pool.submit(new Callable<String>() {
+	  public String call() throws Exception {
+	    System.err.println("processing sample " + sample.bam + " => " + outfile);  // debug
+	    if (sample.matrix == null) sample.set_outfile(outfile);
+	    sample.report();
+	    return outfile;
 	  }
-
-	}  // SplicedReadInfo
-
-      }  // query.hasNext()
-
-      flush_check(true, null);
-      // finish this query
-
-      query.close();
-
+	}));
     }
 
-    wf.finish();
-    if (rpt_reads != null) rpt_reads.close();
-
-    if (broken_edge_reads > 0) {
-      System.err.println("reads mapped beyond end of reference: " + broken_edge_reads);  // debug
+    try {
+      for (Future<String> result : results) {
+	System.err.println("finished " + result.get());  // debug
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    } finally {
+      pool.shutdownNow();
+      reference_cache = null;
     }
 
-    if (broken_read_index > 0) {
-      System.err.println("reads where CIGAR goes past read end: " + broken_read_index);  // debug
-    }
-    if (broken_qual_index > 0) {
-      System.err.println("reads where CIGAR goes past quality array end: " + broken_qual_index);  // debug
+    if (matrix != null) {
+      System.err.println("writing matrix: junctions: " + matrix.get_junction_count() + " entries: " + matrix.get_entry_count());  // debug
+      matrix.write(matrix_file, ic);
+      matrix = null;
     }
+  }
 
+  private SplicedReadReporter get_sample_reporter (File bam) throws IOException {
+    //
+    // batch mode: a reporter for a single BAM with the same settings,
+    // IntronCache and ReferenceCache as this one
+    //
+    SplicedReadReporter sample;
+    try {
+      sample = (SplicedReadReporter) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IOException(e);
+    }
+    sample.bam = bam;
+    sample.query_regions = new ArrayList<SAMRegion>(query_regions);
+    // may be added to, e.g. by -ignore-incompatible
+    return sample;
   }
 
-  private void flush_check (boolean force, SAMRecord sr) {
-    if (VERBOSE) System.err.println("flush check, size=" + events_by_name.size());  // debug
-    ArrayList<SplicedReadInfo> to_report = new ArrayList<SplicedReadInfo>();
-    if (force) {
-      to_report.addAll(events_by_name.values());
-    } else {
-      int current_start = sr.getAlignmentStart();
-      if (VERBOSE) System.err.println("current start="+current_start);  // debug
-
-      ArrayList<SplicedReadInfo> all = new ArrayList<SplicedReadInfo>();
-      ArrayList<SplicedReadInfo> candidates = new ArrayList<SplicedReadInfo>();
-      
-      for (SplicedReadInfo sri : events_by_name.values()) {
-	all.add(sri);
-	if (current_start > sri.segment_2_start) {
-	  //	  System.err.println("FLUSH 1");  // debug
-	  candidates.add(sri);
+  private void write_unit (SplicedReadUnit unit) {
+    //
+    // write the junctions for a unit in the same order single-threaded
+    // mode would have: each junction is flushed at the first checkpoint
+    // at/after the first read which starts past it, or at the end of
+    // the reference, and each flushed batch is sorted.
+    //
+    int n = unit.record_count;
+    if (n == 0) return;
+
+    int lo = unit.reference_index == replay_reference_i ? 0 : 1;
+    // the first read on a new reference forces a flush rather than
+    // advancing the checkpoint counter
+    long base = replay_checkpoint + 1 - lo;
+    // checkpoint counter value after read i is base + i
+
+    for (SplicedReadInfo sri : unit.junctions) {
+      int i = Math.max(sri.flush_index, lo);
+      long value = base + i;
+      i += (int) ((flush_check_interval - (value % flush_check_interval)) % flush_check_interval);
+      sri.flush_index = i < n ? i : n;
+    }
+
+    Collections.sort(unit.junctions, new Comparator<SplicedReadInfo>() {
+	public int compare (SplicedReadInfo a, SplicedReadInfo b) {
+	  int diff = a.flush_index - b.flush_index;
+	  return diff == 0 ? a.compareTo(b) : diff;
 	}
-      }
+      });
+    write_sorted_junctions(unit.junctions);
 
-      if (SORT) {
-	for (SplicedReadInfo candidate : candidates) {
-	  int overlaps = 0;
-	  //	System.err.println("candidate=" + candidate.get_name() + " cs=" + current_start);  // debug
-
-	  for (SplicedReadInfo sri : all) {
-	    if (candidate.overlaps(sri)) {
-	      //	    System.err.println(" overlap with " + sri.get_name());  // debug
-	      overlaps++;
-	    } else {
-	      //	    System.err.println(" NO overlap with " + sri.get_name());  // debug
-	    }
-	  }
-	  //	System.err.println("  overlaps="+overlaps);  // debug
+    replay_checkpoint += n - lo;
+    replay_reference_i = unit.reference_index;
+  }
 
-	  if (overlaps > 1) {
-	    // overlaps a still-pending span
-	    // allow one overlap (for this record)
-	    //	  System.err.println("KEEP2!");  // debug
-	  } else {
-	    // flushable
-	    to_report.add(candidate);
-	  }
-	}
-      } else {
-	to_report.addAll(candidates);
-      }
-    }
+  private void add_broken_counts (SplicedReadWorker worker) {
+    broken_edge_reads += worker.broken_edge_reads;
+    broken_read_index += worker.broken_read_index;
+    broken_qual_index += worker.broken_qual_index;
+  }
 
+  public void write_junctions (ArrayList<SplicedReadInfo> to_report) {
     Collections.sort(to_report);
 
     if (false) {
@@ -614,6 +592,10 @@ public class SplicedReadReporter {
       }
     }
 
+    write_sorted_junctions(to_report);
+  }
+
+  private void write_sorted_junctions (ArrayList<SplicedReadInfo> to_report) {
     boolean usable;
     boolean known;
     for (SplicedReadInfo sri : to_report) {
@@ -623,7 +605,13 @@ public class SplicedReadReporter {
       if (usable && sri.get_span_size() < MIN_SPAN) usable = false;
       // minimum span size
 
-      HashSet<UCSCRefGene> rgs = null;
+      if (matrix != null) {
+	if (usable) matrix.add(matrix_sample, sri);
+	continue;
+	// known and novel, annotated when the matrix is written
+      }
+
+      List<UCSCRefGene> rgs = null;
       if (usable && ic != null) {
 	// if a junction file is specified
 	rgs = ic.find_exon_junction(sri);
@@ -645,8 +633,6 @@ public class SplicedReadReporter {
 	  write_counts(sri);
 	}
       }
-
-      events_by_name.remove(sri.get_name());
     }
   }
 
@@ -657,17 +643,41 @@ public class SplicedReadReporter {
     SplicedReadReporter srr = new SplicedReadReporter();
 
     try {
-      UCSCRefGeneReader rg = null;
+      String refflat_file = null;
+      String t2g_file = null;
+      boolean refflat_snapshot = false;
       String strand_filter = null;
+      String bam_list = null;
+      int sample_threads = 1;
+      String matrix_file = null;
+      String reference_file = null;
+      boolean reference_fasta = false;
+      boolean reference_sidecar = false;
+      long reference_cache_mb = 0;
+      boolean reference_cache_off_heap = false;
 
       for (int i=0; i < argv.length; i++) {
 	if (argv[i].equals("-bam")) {
 	  srr.set_bam(new File(argv[++i]));
+	} else if (argv[i].equals("-bam-list")) {
+	  // batch mode: file of BAMs and outfiles, separated by a tab
+	  bam_list = argv[++i];
+	} else if (argv[i].equals("-sample-threads")) {
+	  // batch mode: number of BAMs to process concurrently
+	  sample_threads = Integer.parseInt(argv[++i]);
+	} else if (argv[i].equals("-matrix")) {
+	  // batch mode: write a cohort junction x sample matrix
+	  // rather than a junction file per BAM
+	  matrix_file = argv[++i];
 	} else if (argv[i].equals("-refflat")) {
-	  rg = new UCSCRefGeneReader(argv[++i]);
+	  refflat_file = argv[++i];
+	} else if (argv[i].equals("-refflat-snapshot")) {
+	  // load -refflat via a binary snapshot file, compiled on
+	  // first use (see AnnotationSnapshot)
+	  refflat_snapshot = true;
 	} else if (argv[i].equals("-strand")) {
 	  strand_filter = argv[++i];
-	  if (rg == null) {
+	  if (refflat_file == null) {
 	    System.err.println("ERROR: specify -refflat before -strand");  // debug
 	    System.exit(1);
 	  } else if (strand_filter.equals("+") ||
@@ -679,11 +689,11 @@ public class SplicedReadReporter {
 	  }
 	} else if (argv[i].equals("-t2g")) {
 	  // transcript->gene mapping file (e.g. for ENSEMBL)
-	  if (rg == null) {
+	  if (refflat_file == null) {
 	    System.err.println("ERROR: specify -refflat before -t2g");  // debug
 	    System.exit(1);
 	  } else {
-	    rg.set_transcript2gene(argv[++i]);
+	    t2g_file = argv[++i];
 	  }
 	} else if (argv[i].equals("-min-reads")) {
 	  srr.set_minimum_observations_to_report(Integer.parseInt(argv[++i]));
@@ -709,9 +719,15 @@ public class SplicedReadReporter {
 	} else if (argv[i].equals("-rgb-novel")) {
 	  srr.set_novel_rgb(argv[++i]);
 	} else if (argv[i].equals("-2bit")) {
-	  srr.set_reference_sequence(new TwoBitFile(argv[++i]));
+	  reference_file = argv[++i];
+	  reference_fasta = false;
 	} else if (argv[i].equals("-fasta")) {
-	  srr.set_reference_sequence(new FASTAIndexedFAI(argv[++i]));
+	  reference_file = argv[++i];
+	  reference_fasta = true;
+	} else if (argv[i].equals("-reference-sidecar")) {
+	  // open the reference via a binary sidecar file, built on
+	  // first use (see ReferenceSidecar)
+	  reference_sidecar = true;
 	} else if (argv[i].equals("-restrict-read-name")) {
 	  // restrict processing to a specific read name
 	  srr.set_restrict_read_name(argv[++i]);
@@ -746,52 +762,71 @@ public class SplicedReadReporter {
 	  srr.set_min_span(Integer.parseInt(argv[++i]));
 	} else if (argv[i].equals("-ignore-incompatible")) {
 	  srr.set_ignore_incompatible(true);
+	} else if (argv[i].equals("-threads")) {
+	  // multi-threaded extraction, one BAM reference per thread
+	  srr.set_threads(Integer.parseInt(argv[++i]));
+	} else if (argv[i].equals("-shard-size")) {
+	  // multi-threaded extraction: also split references into
+	  // shards of this many bases
+	  srr.set_shard_size(Integer.parseInt(argv[++i]));
+	} else if (argv[i].equals("-walk-threads")) {
+	  // pipelined extraction: separate threads for BAM decoding,
+	  // CIGAR walk and junction counting
+	  srr.set_walk_threads(Integer.parseInt(argv[++i]));
+	} else if (argv[i].equals("-reference-window")) {
+	  srr.set_reference_window(true);
+	} else if (argv[i].equals("-prefetch-reference")) {
+	  srr.set_prefetch_reference(true);
+	} else if (argv[i].equals("-reference-cache-mb")) {
+	  // cache decoded reference sequence, up to this many MB
+	  reference_cache_mb = Long.parseLong(argv[++i]);
+	} else if (argv[i].equals("-reference-cache-off-heap")) {
+	  reference_cache_off_heap = true;
 	} else {
 	  System.err.println("ERROR: unknown parameter " + argv[i]);  // debug
 	  System.exit(1);
 	}
       }
 
-      if (rg != null) {
-	IntronCache ic;
-	if (strand_filter == null) {
-	  ic = new IntronCache(rg);
-	} else {
-	  ic = new IntronCache(rg, strand_filter);
-	}
-	srr.set_intron_cache(ic);
+      if (refflat_file == null) {
+	// no annotation
+      } else if (refflat_snapshot) {
+	srr.set_intron_cache(AnnotationSnapshot.open(refflat_file, strand_filter, t2g_file));
+      } else {
+	srr.set_intron_cache(AnnotationSnapshot.parse(refflat_file, strand_filter, t2g_file));
       }
 
-      srr.report();
+      if (reference_file == null) {
+	// reported by report()
+      } else if (reference_sidecar) {
+	srr.set_reference_sequence(ReferenceSidecar.open(reference_file, reference_fasta));
+      } else if (reference_fasta) {
+	srr.set_reference_sequence(new FASTAIndexedFAI(reference_file));
+      } else {
+	srr.set_reference_sequence(new TwoBitMappedFile(reference_file));
+      }
+
+      CachedReferenceSequence crs = null;
+      if (reference_cache_mb > 0 && srr.reference_sequence != null) {
+	crs = new CachedReferenceSequence(srr.reference_sequence,
+					  reference_cache_mb << 20,
+					  reference_cache_off_heap);
+	srr.set_reference_sequence(crs);
+      }
+
+      if (bam_list == null) {
+	srr.report();
+      } else {
+	srr.report_batch(bam_list, sample_threads, matrix_file);
+      }
+      if (crs != null) System.err.println("reference cache: " + crs.get_stats());  // debug
     } catch (Exception e) {
       System.err.println("ERROR: " + e);  // debug
       e.printStackTrace();
     }
   }
 
-  private SplicedReadInfo track_site (String ref_name, int seq1_end, int seq2_start, SAMRecord sr) {
-    if (VERBOSE) System.err.println("tracking " + ref_name + " " + seq1_end + " " + seq2_start + " read="+sr.getReadName());  // debug
-
-    SplicedReadInfo sri = new SplicedReadInfo(ref_name, seq1_end, seq2_start);
-    String name = sri.get_name();
-    // bleh; better way to do this?
-    if (events_by_name.containsKey(name)) {
-      sri = events_by_name.get(name);
-    } else {
-      events_by_name.put(name, sri);
-    }
-    sri.increment_counter();
-
-    if (sr.getReadNegativeStrandFlag()) {
-      sri.increment_minus();
-    } else {
-      sri.increment_plus();
-    }
-
-    return sri;
-  }
-
-  private void write_delimited (SplicedReadInfo sri, HashSet<UCSCRefGene> rgs) {
+  private void write_delimited (SplicedReadInfo sri, List<UCSCRefGene> rgs) {
     if (!wrote_header) {
       ArrayList<String> fields = new ArrayList<String>();
       fields.add("junction");
@@ -824,11 +859,6 @@ public class SplicedReadReporter {
 	fields.add("");
 	fields.add("");
       } else {
-	//
-	//  TO DO: sort UCSCRefGene entries by transcript name!
-	//  output is currently stochastic which makes diffs difficult
-	//
-
 	ArrayList<String> genes = new ArrayList<String>();
 	ArrayList<String> transcripts = new ArrayList<String>();
 	for (UCSCRefGene rg : rgs) {
@@ -861,7 +891,7 @@ public class SplicedReadReporter {
     ps.println(Str.join("\t", fields));
   }
 
-  private String format_junction (SplicedReadInfo sri) {
+  static String format_junction (SplicedReadInfo sri) {
     return sri.reference_name + ":" + sri.segment_1_end + ":+," +
       //      sri.reference_name + ":" + sri.segment_2_start + ":+,";
       sri.reference_name + ":" + sri.segment_2_start + ":+";
@@ -876,7 +906,7 @@ public class SplicedReadReporter {
 	       );
   }
 
-  private void write_bed (SplicedReadInfo sri, HashSet<UCSCRefGene> rgs) {
+  private void write_bed (SplicedReadInfo sri, List<UCSCRefGene> rgs) {
     // .bed format
     // http://genome.ucsc.edu/FAQ/FAQformat.html#format1
     if (!wrote_header) {
@@ -946,13 +976,5 @@ public class SplicedReadReporter {
     ps.println(Str.join("\t", fields));
   }
 
-  private boolean get_flank_qc (SplicedReadFlankingInfo fi, boolean is_read_edge) {
-
-    return fi.count_aligned_bases >= (is_read_edge ?
-				      QC_MIN_FLANKING_NT_READ_EDGE : QC_MIN_FLANKING_NT_INTERNAL);
-    // if the sequence flanking the junction abuts a read edge,
-    // use a more stringent check
-  }
-
 
 }
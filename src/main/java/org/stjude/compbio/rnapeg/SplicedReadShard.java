@@ -0,0 +1,37 @@
+package org.stjude.compbio.rnapeg;
+// a window of a SplicedReadUnit, processed by a single thread.
+//
+// Ownership rules, so shards of a unit can be processed concurrently
+// and combined into exactly the single-threaded result:
+// - a read belongs to the shard containing its alignment start.
+// - a junction belongs to the shard containing its segment_2_start.
+//   Every read supporting the junction overlaps the base before it
+//   (the last base of the intron: the read may end there, e.g. with
+//   a soft clip after the N), so each shard's query window starts one
+//   base before the bases it owns and the owning shard sees all of
+//   them.  The shard's own reads are the ones which determine when
+//   the junction would be flushed.
+// The first and last shards also own anything before/after the window.
+
+import java.util.*;
+
+public class SplicedReadShard {
+  SplicedReadUnit unit;
+  SAMRegion window;
+  int own_start, own_end;
+  // base range owned by this shard
+
+  int reference_index = -1;
+  int record_count = 0;
+  // number of owned reads processed, after filtering
+  ArrayList<SplicedReadInfo> junctions;
+  // owned junctions, with flush_index relative to this shard's reads
+
+  public SplicedReadShard (SplicedReadUnit unit, SAMRegion window, int own_start, int own_end) {
+    this.unit = unit;
+    this.window = window;
+    this.own_start = own_start;
+    this.own_end = own_end;
+  }
+
+}
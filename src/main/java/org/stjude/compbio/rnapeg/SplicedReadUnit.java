@@ -0,0 +1,76 @@
+package org.stjude.compbio.rnapeg;
+// a unit of multi-threaded spliced read extraction: a single BAM
+// reference sequence, or a query region on one.  Equivalent to one
+// pass of the single-threaded extraction loop, and optionally split
+// into SplicedReadShards which are processed concurrently.
+
+import java.util.*;
+
+public class SplicedReadUnit {
+  SAMRegion region;
+  // query region (reference name, optional start/end)
+  ArrayList<SplicedReadShard> shards;
+
+  int reference_index = -1;
+  // BAM reference index of processed reads
+  int record_count = 0;
+  // number of reads processed, after filtering
+  ArrayList<SplicedReadInfo> junctions;
+  // junctions observed, with flush_index set
+
+  public SplicedReadUnit (SAMRegion region) {
+    this.region = region;
+    shards = new ArrayList<SplicedReadShard>();
+  }
+
+  public void add_shards (int shard_size, int length) {
+    //
+    // split into windows of shard_size bases.  If shard_size <= 0 or
+    // the region length isn't known, the unit is processed as one shard.
+    //
+    int start = region.range.isValid() ? region.range.start : 1;
+    int end = region.range.isValid() ? region.range.end : length;
+    if (shard_size <= 0 || end < start) {
+      shards.add(new SplicedReadShard(this, region, Integer.MIN_VALUE, Integer.MAX_VALUE));
+    } else {
+      for (long ws = start; ws <= end; ws += shard_size) {
+	int window_start = (int) ws;
+	int window_end = (int) Math.min(end, ws + shard_size - 1);
+	int query_start = window_start == start ? start : window_start - 1;
+	// also reads ending just before the window, for junctions they
+	// support at its first base (see SplicedReadShard)
+	shards.add(new SplicedReadShard(this,
+					new SAMRegion(region.tname, query_start, window_end),
+					window_start == start ? Integer.MIN_VALUE : window_start,
+					window_end == end ? Integer.MAX_VALUE : window_end));
+      }
+    }
+  }
+
+  public void merge_shards() {
+    //
+    // combine shard results.  Reads are numbered across the whole unit,
+    // and counters for any junction reported by more than one shard
+    // are summed.
+    //
+    HashMap<String,SplicedReadInfo> merged = new HashMap<String,SplicedReadInfo>();
+    record_count = 0;
+    for (SplicedReadShard shard : shards) {
+      if (shard.reference_index != -1) reference_index = shard.reference_index;
+      for (SplicedReadInfo sri : shard.junctions) {
+	sri.flush_index += record_count;
+	String name = sri.get_name();
+	SplicedReadInfo existing = merged.get(name);
+	if (existing == null) {
+	  merged.put(name, sri);
+	} else {
+	  existing.merge(sri);
+	}
+      }
+      record_count += shard.record_count;
+      shard.junctions = null;
+    }
+    junctions = new ArrayList<SplicedReadInfo>(merged.values());
+  }
+
+}
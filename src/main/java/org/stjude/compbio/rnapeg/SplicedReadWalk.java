@@ -0,0 +1,101 @@
+package org.stjude.compbio.rnapeg;
+// result of walking a read's CIGAR: the junctions (skips) it contains,
+// in CIGAR order, and the flanking sequence information around them.
+//
+// Reused from read to read: the per-segment counts are the fields of
+// SplicedReadFlankingInfo, stored in primitive arrays indexed by
+// segment so walking a read allocates nothing.  Junction i is flanked
+// by segment i on the left and segment i + 1 on the right.
+
+import htsjdk.samtools.*;
+import java.util.*;
+
+public class SplicedReadWalk {
+  private static final int INITIAL_JUNCTIONS = 8;
+  // more than almost any read will have; grown if needed
+
+  SAMRecord sr;
+  int junction_count;
+  int[] segment_1_end, segment_2_start;
+  // junction i: reference base numbers (1-based) before/after skip
+
+  int[] count_aligned_bases;
+  int[] count_aligned_mismatched_bases;
+  int[] count_soft_clip_bases;
+  int[] count_inserted_bases;
+  int[] count_deleted_bases;
+  int[] last_read_i;
+  // per segment, as in SplicedReadFlankingInfo
+
+  public SplicedReadWalk() {
+    allocate(INITIAL_JUNCTIONS);
+  }
+
+  public void start (SAMRecord sr) {
+    this.sr = sr;
+    junction_count = 0;
+    clear_segment(0);
+  }
+
+  public void add_junction (int seq1_end, int seq2_start) {
+    // ends the current segment and starts a new one
+    if (junction_count == segment_1_end.length) allocate(junction_count * 2);
+    segment_1_end[junction_count] = seq1_end;
+    segment_2_start[junction_count] = seq2_start;
+    junction_count++;
+    clear_segment(junction_count);
+  }
+
+  public double get_junk_ratio (int segment) {
+    return (double) (
+		     count_aligned_mismatched_bases[segment] +
+		     count_soft_clip_bases[segment] +
+		     count_inserted_bases[segment] +
+		     count_deleted_bases[segment]
+		     ) / count_aligned_bases[segment];
+  }
+
+  public double get_junk_ratio_soft_clip (int segment) {
+    return (double) count_soft_clip_bases[segment] / count_aligned_bases[segment];
+  }
+
+  public double get_junk_ratio_indel (int segment) {
+    return (double) (count_inserted_bases[segment] + count_deleted_bases[segment]) / count_aligned_bases[segment];
+  }
+
+  public double get_junk_ratio_mismatches (int segment) {
+    return (double) count_aligned_mismatched_bases[segment] / count_aligned_bases[segment];
+  }
+
+  private void clear_segment (int segment) {
+    count_aligned_bases[segment] = 0;
+    count_aligned_mismatched_bases[segment] = 0;
+    count_soft_clip_bases[segment] = 0;
+    count_inserted_bases[segment] = 0;
+    count_deleted_bases[segment] = 0;
+    last_read_i[segment] = 0;
+  }
+
+  private void allocate (int junctions) {
+    if (segment_1_end == null) {
+      segment_1_end = new int[junctions];
+      segment_2_start = new int[junctions];
+      count_aligned_bases = new int[junctions + 1];
+      count_aligned_mismatched_bases = new int[junctions + 1];
+      count_soft_clip_bases = new int[junctions + 1];
+      count_inserted_bases = new int[junctions + 1];
+      count_deleted_bases = new int[junctions + 1];
+      last_read_i = new int[junctions + 1];
+    } else {
+      segment_1_end = Arrays.copyOf(segment_1_end, junctions);
+      segment_2_start = Arrays.copyOf(segment_2_start, junctions);
+      count_aligned_bases = Arrays.copyOf(count_aligned_bases, junctions + 1);
+      count_aligned_mismatched_bases = Arrays.copyOf(count_aligned_mismatched_bases, junctions + 1);
+      count_soft_clip_bases = Arrays.copyOf(count_soft_clip_bases, junctions + 1);
+      count_inserted_bases = Arrays.copyOf(count_inserted_bases, junctions + 1);
+      count_deleted_bases = Arrays.copyOf(count_deleted_bases, junctions + 1);
+      last_read_i = Arrays.copyOf(last_read_i, junctions + 1);
+    }
+  }
+
+}
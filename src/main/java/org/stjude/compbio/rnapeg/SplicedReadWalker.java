@@ -0,0 +1,242 @@
+package org.stjude.compbio.rnapeg;
+// CIGAR walk for spliced read extraction: finds the junctions in a read
+// and accumulates flanking sequence information (aligned bases,
+// mismatches vs. the reference, soft clips, indels) around them.
+// Depends only on the read and the reference sequence, so several
+// walkers may run in parallel for a single SplicedReadWorker.
+
+import htsjdk.samtools.*;
+import java.util.*;
+
+public class SplicedReadWalker {
+  private SplicedReadReporter srr;
+
+  int broken_edge_reads = 0;
+  int broken_read_index = 0;
+  int broken_qual_index = 0;
+
+  public SplicedReadWalker (SplicedReadReporter srr) {
+    this.srr = srr;
+  }
+
+  public void walk (SplicedReadWalk walk, PackedSequence refseq) {
+    CigarOperator co;
+    int len;
+
+    final boolean VERBOSE = false;
+    // debug
+
+    SAMRecord sr = walk.sr;
+    walk.start(sr);
+    int segment = 0;
+    // flanking info accumulator: the current segment of the walk
+
+    Cigar c = sr.getCigar();
+    int cigar_length = c.numCigarElements();
+    boolean spliced = false;
+    for (int ci = 0; ci < cigar_length; ci++) {
+      if (c.getCigarElement(ci).getOperator().equals(CigarOperator.SKIPPED_REGION)) {
+	spliced = true;
+	break;
+      }
+    }
+    if (!spliced) return;
+    // reads without skips don't support any junction, so don't
+    // decode their bases and qualities (BAMRecord does this lazily)
+
+    int ref_base = sr.getUnclippedStart();
+
+    if (VERBOSE) System.err.println("new read:" + sr.getReadName() + " unclipped_start:" + ref_base);
+
+    byte[] read_bases = sr.getReadBases();
+    byte[] read_qualities = sr.getBaseQualities();
+    int read_i = 0;
+    // for mismatch detection of course it's desirable to use
+    // SAMRecord.getAlignmentBlocks() but then these have to be mapped
+    // to the appropriate flanking regions.
+
+    for (int ci = 0; ci < cigar_length; ci++) {
+      // not for/each, which would allocate an iterator per read
+      CigarElement ce = c.getCigarElement(ci);
+      co = ce.getOperator();
+      len = ce.getLength();
+      //	System.err.println("op " + co + " " + len);  // debug
+      if (co.equals(CigarOperator.MATCH_OR_MISMATCH)) {
+	int usable = len;
+	if (refseq.length - (ref_base - 1) < usable) usable = Math.max(0, refseq.length - (ref_base - 1));
+	if (read_bases.length - read_i < usable) usable = Math.max(0, read_bases.length - read_i);
+	if (read_qualities.length - read_i < usable) usable = Math.max(0, read_qualities.length - read_i);
+	// bases which can be compared before running off the end of the
+	// reference, read or quality array
+
+	int mismatches = refseq.count_mismatches(ref_base - 1,
+						 read_bases, read_qualities, read_i,
+						 usable, srr.MIN_QUALITY_FOR_MISMATCH_CHECK);
+	if (VERBOSE && mismatches > 0) System.err.println("mismatch bases: " + mismatches);  // debug
+
+	if (usable < len) {
+	  ref_base += usable;
+	  read_i += usable;
+	  walk.last_read_i[segment] = read_i;
+	  if (ref_base > refseq.length) {
+	    System.err.println("WARNING: read mapped beyond end of reference: " + sr.getReadName() + " at " + sr.getReferenceName() + "." + sr.getAlignmentStart());  // debug
+	    broken_edge_reads++;
+	  } else if (read_i >= read_bases.length) {
+	    System.err.println("WARNING: read index beyond end of read bases: " + sr.getReadName() + " at " + sr.getReferenceName() + "." + sr.getAlignmentStart());
+	    broken_read_index++;
+	  } else {
+	    System.err.println("WARNING: read index beyond end of quality array: " + sr.getReadName() + " at " + sr.getReferenceName() + "." + sr.getAlignmentStart());
+	    broken_qual_index++;
+	  }
+	  // rest of block is skipped, reference and read positions
+	  // stay at the problem base
+	} else {
+	  if (len > 0) walk.last_read_i[segment] = read_i + len - 1;
+	  ref_base += len;
+	  read_i += len;
+	}
+	walk.count_aligned_mismatched_bases[segment] += mismatches;
+	walk.count_aligned_bases[segment] += len;
+      } else if (co.equals(CigarOperator.SOFT_CLIP)) {
+	ref_base += len;
+	read_i += len;
+	walk.count_soft_clip_bases[segment] += len;
+      } else if (co.equals(CigarOperator.SKIPPED_REGION)) {
+	int seq1_end = ref_base - 1;
+	// base # before skip
+	int seq2_start = ref_base + len;
+	// base # after skip
+	walk.add_junction(seq1_end, seq2_start);
+	//	  System.err.println("money! splice=" + seq1_end + "-" + seq2_start + " insertion:" + has_insertion + " del:"+has_deletion + " read="+ sr.getReadName());
+	// the current accumulator is shared, it provides right-flanking
+	// information for the previous skip (if any) as well as
+	// left-flanking information for this skip
+
+	segment++;
+	// start new accumulator for right-flanking info for this skip
+
+	ref_base += len;
+	// read index: since a skip, no change
+      } else if (co.equals(CigarOperator.INSERTION)) {
+	// insertion does not affect reference sequence location
+	walk.count_inserted_bases[segment] += len;
+	read_i += len;
+	// inserted nucleotides appear in the read but not the reference
+      } else if (co.equals(CigarOperator.DELETION)) {
+	walk.count_deleted_bases[segment] += len;
+	ref_base += len;
+	// deleted nucleotides appear in the reference but not the read
+      } else if (co.equals(CigarOperator.HARD_CLIP)) {
+	// hard clips are in the reference (because we are using unclipped start)
+	// but not the sequence.
+	ref_base += len;
+      } else {
+	System.err.println("unhandled CIGAR operator " + co);  // debug
+	System.exit(1);
+      }
+    }
+  }
+
+  private static int count_mismatches_chain (byte[] refseq, int ref_i,
+					     byte[] read_bases, byte[] read_qualities,
+					     int read_i, int len, int min_quality) {
+    // the original per-base comparison vs. a byte per base reference,
+    // for benchmarking
+    int mismatches = 0;
+    for (int i = 0; i < len; i++, ref_i++, read_i++) {
+      byte base_ref = refseq[ref_i];
+      if (
+	  base_ref != read_bases[read_i] &&
+	  read_qualities[read_i] >= min_quality &&
+	  (read_bases[read_i] == 'A' ||
+	   read_bases[read_i] == 'C' ||
+	   read_bases[read_i] == 'G' ||
+	   read_bases[read_i] == 'T') &&
+	  (base_ref == 'A' ||
+	   base_ref == 'C' ||
+	   base_ref == 'G' ||
+	   base_ref == 'T')
+	  ) {
+	mismatches++;
+      }
+    }
+    return mismatches;
+  }
+
+  public static void main (String[] argv) {
+    //
+    // benchmark mismatch counting for simulated reads:
+    //   SplicedReadWalker [-length 150] [-reads 1000000] [-rounds 5]
+    //
+    int read_length = 150;
+    int read_count = 1000000;
+    int rounds = 5;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-length")) {
+	read_length = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-reads")) {
+	read_count = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-rounds")) {
+	rounds = Integer.parseInt(argv[++i]);
+      } else {
+	System.err.println("ERROR: unknown parameter " + argv[i]);  // debug
+	System.exit(1);
+      }
+    }
+
+    Random rnd = new Random(1);
+    byte[] acgt = {'A', 'C', 'G', 'T'};
+    byte[] refseq = new byte[10000000];
+    for (int i = 0; i < refseq.length; i++) {
+      refseq[i] = rnd.nextInt(1000) == 0 ? (byte) 'N' : acgt[rnd.nextInt(4)];
+    }
+
+    int[] starts = new int[read_count];
+    byte[][] bases = new byte[read_count][];
+    byte[][] quals = new byte[read_count][];
+    for (int r = 0; r < read_count; r++) {
+      int start = rnd.nextInt(refseq.length - read_length);
+      starts[r] = start;
+      byte[] b = Arrays.copyOfRange(refseq, start, start + read_length);
+      byte[] q = new byte[read_length];
+      for (int i = 0; i < read_length; i++) {
+	int roll = rnd.nextInt(1000);
+	if (roll < 10) {
+	  b[i] = acgt[rnd.nextInt(4)];
+	  // ~1% sequencing errors
+	} else if (roll < 11) {
+	  b[i] = 'N';
+	}
+	q[i] = (byte) (2 + rnd.nextInt(39));
+      }
+      bases[r] = b;
+      quals[r] = q;
+    }
+
+    PackedSequence packed = PackedSequence.pack("simulated", refseq);
+
+    long total_bases = (long) read_count * read_length;
+    for (int round = 1; round <= rounds; round++) {
+      long t0 = System.nanoTime();
+      long chain = 0;
+      for (int r = 0; r < read_count; r++) {
+	chain += count_mismatches_chain(refseq, starts[r], bases[r], quals[r], 0, read_length, 15);
+      }
+      long t1 = System.nanoTime();
+      long packed_count = 0;
+      for (int r = 0; r < read_count; r++) {
+	packed_count += packed.count_mismatches(starts[r], bases[r], quals[r], 0, read_length, 15);
+      }
+      long t2 = System.nanoTime();
+      if (chain != packed_count) {
+	System.err.println("ERROR: mismatch count differs: " + chain + " " + packed_count);  // debug
+	System.exit(1);
+      }
+      System.err.println("round " + round +
+			 " mismatches=" + packed_count +
+			 " chain Mbases/s=" + (total_bases * 1000 / (t1 - t0)) +
+			 " packed Mbases/s=" + (total_bases * 1000 / (t2 - t1)));  // debug
+    }
+  }
+
+}
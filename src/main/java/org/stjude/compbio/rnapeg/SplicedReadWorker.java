@@ -0,0 +1,668 @@
+package org.stjude.compbio.rnapeg;
+// spliced read extraction for a SplicedReadReporter: walks reads
+// from its own SamReader against its own reference buffer.
+//
+// - single-threaded mode: one worker processes each query region in
+//   turn and flushes junctions to the reporter as it goes.
+// - multi-threaded mode (-threads): each thread has its own worker,
+//   which processes one SplicedReadShard (all or part of a BAM reference
+//   or query region) at a time.  Junctions are retained until the end
+//   of the shard along with the point at which the single-threaded code
+//   would have flushed them, so the reporter can write exactly the same
+//   output.  See SplicedReadShard for which reads and junctions a
+//   shard is responsible for.
+//
+// Reads may also be processed as a pipeline (-walk-threads): a reader
+// thread decodes records, several SplicedReadWalkers run the CIGAR
+// walk, and the worker's own thread aggregates the results.
+//
+// With -reference-window, only a window of a few MB of the reference
+// around the current reads is held, rather than the whole chromosome.
+// A new window is loaded whenever a read falls outside the current one;
+// windows are immutable, as batches in the pipeline keep their own.
+
+import htsjdk.samtools.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SplicedReadWorker {
+  private static final int WINDOW_BASES = 1 << 22;
+  // reference window size (1 MB packed), or the read span if larger
+  private static final int WINDOW_BEHIND = 1 << 16;
+  // bases kept behind the read which starts a window, as unclipped
+  // starts of later reads may be earlier
+  private SplicedReadReporter srr;
+  private SamReader sfr;
+  private SAMQuery sq;
+  private SplicedReadWalker walker;
+  private SplicedReadWalk walk;
+  private ArrayList<SplicedReadBatch> batches;
+  // reusable scratch space for walking reads
+  private ExecutorService pipeline = null;
+  // reader and walker threads, kept until release_reference()
+  private boolean deferred;
+  // multi-threaded mode: keep all junctions until end of unit
+
+  private JunctionTable junctions;
+  // pending junctions for the current reference
+  private LongHeap frontier;
+  // keys of pending junctions not yet passed by the read frontier,
+  // in segment_2_start order
+  private int record_count;
+  // deferred mode: records processed in the current shard
+  private int own_start = Integer.MIN_VALUE;
+  private int own_end = Integer.MAX_VALUE;
+  // deferred mode: positions owned by the current shard
+
+  private int current_reference_i = -1;
+  private int current_contig_id = ContigDictionary.NONE;
+  private String current_reference_name = null;
+  private PackedSequence refseq = null;
+  // reference of the most recently read record
+  private int aggregate_reference_i = -1;
+  // reference of the most recently aggregated record
+  private String loaded_reference = null;
+  // name of refseq in the reporter's ReferenceCache, if any
+  private boolean prefetch = false;
+  private String prefetched_reference = null;
+  // prefetch mode: next reference in the BAM header, being loaded
+  // in the background
+  private int reference_length;
+  // window mode: length of the current reference
+  private int checkpoint = 0;
+
+  int broken_edge_reads = 0;
+  int broken_read_index = 0;
+  int broken_qual_index = 0;
+
+  public SplicedReadWorker (SplicedReadReporter srr, SamReader sfr, boolean deferred) {
+    this.srr = srr;
+    this.sfr = sfr;
+    this.deferred = deferred;
+    sq = new SAMQuery(sfr);
+    walker = new SplicedReadWalker(srr);
+    walk = new SplicedReadWalk();
+    junctions = new JunctionTable();
+    frontier = new LongHeap();
+  }
+
+  public SamReader get_reader() {
+    return sfr;
+  }
+
+  public void process_shard (SplicedReadShard shard) throws IOException {
+    //
+    // multi-threaded mode: extract junctions owned by a shard
+    //
+    junctions.clear();
+    frontier.clear();
+    record_count = 0;
+    own_start = shard.own_start;
+    own_end = shard.own_end;
+
+    process(shard.window);
+
+    for (int i = 0; i < frontier.size(); i++) {
+      junctions.flush_index[junctions.find(frontier.get(i))] = record_count;
+      // not passed by any read in this shard: flushed at the next
+      // shard's first read, or at end of reference
+    }
+    frontier.clear();
+
+    shard.record_count = record_count;
+    shard.reference_index = record_count > 0 ? aggregate_reference_i : -1;
+    // if no reads, the worker may be left on another reference
+    shard.junctions = junctions.get_all();
+    junctions.clear();
+  }
+
+  public void release_reference() {
+    //
+    // return the current reference to the cache (if any), and stop
+    // any pipeline threads
+    //
+    if (pipeline != null) {
+      pipeline.shutdownNow();
+      pipeline = null;
+    }
+    if (loaded_reference != null) {
+      srr.reference_cache.release(loaded_reference);
+      loaded_reference = null;
+    }
+    if (prefetched_reference != null) {
+      srr.reference_cache.release(prefetched_reference);
+      prefetched_reference = null;
+    }
+    refseq = null;
+    current_reference_i = -1;
+  }
+
+  private void add_broken_counts (SplicedReadWalker walker) {
+    broken_edge_reads += walker.broken_edge_reads;
+    broken_read_index += walker.broken_read_index;
+    broken_qual_index += walker.broken_qual_index;
+    walker.broken_edge_reads = walker.broken_read_index = walker.broken_qual_index = 0;
+  }
+
+  public void process (SAMRegion query_region) throws IOException {
+    System.err.println("query region: " + query_region);  // debug
+
+    SAMRecordIterator query = sq.query(query_region);
+    prefetch = srr.prefetch_reference && !deferred &&
+      srr.reference_cache != null && query_region.tname == null;
+    // only when iterating through the whole BAM
+
+    if (srr.walk_threads > 0) {
+      process_pipeline(query);
+    } else {
+      while (query.hasNext()) {
+	SAMRecord sr = query.next();
+	if (!usable(sr)) continue;
+	if (sr.getReferenceIndex() != current_reference_i) set_reference(sr);
+	if (!window_covers(sr)) load_window(sr);
+	walk.sr = sr;
+	walker.walk(walk, refseq);
+	aggregate(walk);
+      }
+      add_broken_counts(walker);
+    }
+
+    flush_check(true, null);
+    // finish this query
+
+    query.close();
+  }
+
+  private void process_pipeline (final SAMRecordIterator query) throws IOException {
+    //
+    // read, walk and aggregate in separate threads, connected by
+    // bounded queues:
+    //   - a reader thread decodes records and splits them into batches
+    //   - walk_threads walkers run the CIGAR walk for each batch
+    //   - this thread aggregates walked batches in their original order
+    //
+    int walk_threads = srr.walk_threads;
+    final ArrayBlockingQueue<SplicedReadBatch> to_walk = new ArrayBlockingQueue<SplicedReadBatch>(walk_threads * 2);
+    final ArrayBlockingQueue<SplicedReadBatch> to_aggregate = new ArrayBlockingQueue<SplicedReadBatch>(walk_threads * 4);
+    final ArrayBlockingQueue<SplicedReadBatch> free = new ArrayBlockingQueue<SplicedReadBatch>(walk_threads * 4 + 2);
+    // enough for a full aggregate queue plus one batch being read
+    // and one being aggregated
+    if (batches == null || batches.size() != walk_threads * 4 + 2) {
+      batches = new ArrayList<SplicedReadBatch>();
+      for (int i = 0; i < walk_threads * 4 + 2; i++) {
+	batches.add(new SplicedReadBatch());
+      }
+    }
+    free.addAll(batches);
+    if (pipeline == null) {
+      pipeline = Executors.newFixedThreadPool(walk_threads + 1, new ThreadFactory() {
+	  public Thread newThread (Runnable r) {
+	    Thread t = new Thread(r, "read pipeline");
+	    t.setDaemon(true);
+	    return t;
+	  }
+	});
+    }
+
+    final ArrayList<SplicedReadWalker> walkers = new ArrayList<SplicedReadWalker>();
+    ArrayList<Future<Object>> tasks = new ArrayList<Future<Object>>();
+
+    try {
+      tasks.add(pipeline.submit(new Callable<Object>() {
+	  public Object call() throws InterruptedException {
+	    SplicedReadBatch end = new SplicedReadBatch(0);
+	    end.end = true;
+	    try {
+	      SplicedReadBatch batch = null;
+	      while (query.hasNext()) {
+		SAMRecord sr = query.next();
+		if (!usable(sr)) continue;
+		boolean new_reference = sr.getReferenceIndex() != current_reference_i;
+		boolean new_window = new_reference || !window_covers(sr);
+		if (batch != null &&
+		    (batch.is_full() || new_window)) {
+		  // batches don't span references (or windows)
+		  to_aggregate.put(batch);
+		  to_walk.put(batch);
+		  batch = null;
+		}
+		if (new_reference) set_reference(sr);
+		if (!window_covers(sr)) load_window(sr);
+		if (batch == null) {
+		  batch = free.take();
+		  batch.reset(refseq);
+		}
+		batch.add(sr);
+	      }
+	      if (batch != null) {
+		to_aggregate.put(batch);
+		to_walk.put(batch);
+	      }
+	      end.set_walked(null);
+	    } catch (InterruptedException e) {
+	      throw e;
+	    } catch (Throwable e) {
+	      end.set_walked(e);
+	    }
+	    to_aggregate.put(end);
+	    to_walk.put(end);
+	    return null;
+	  }
+	}));
+
+      for (int i = 0; i < walk_threads; i++) {
+	final SplicedReadWalker walker = new SplicedReadWalker(srr);
+	walkers.add(walker);
+	tasks.add(pipeline.submit(new Callable<Object>() {
+	    public Object call() throws InterruptedException {
+	      while (true) {
+		SplicedReadBatch batch = to_walk.take();
+		if (batch.end) {
+		  to_walk.put(batch);
+		  // for the other walkers
+		  break;
+		}
+		Throwable error = null;
+		try {
+		  for (int i = 0; i < batch.size; i++) {
+		    walker.walk(batch.walks[i], batch.refseq);
+		  }
+		} catch (Throwable e) {
+		  error = e;
+		}
+		batch.set_walked(error);
+	      }
+	      return null;
+	    }
+	  }));
+      }
+
+      while (true) {
+	SplicedReadBatch batch = to_aggregate.take();
+	batch.wait_walked();
+	Throwable error = batch.get_error();
+	if (error != null) {
+	  if (error instanceof IOException) throw (IOException) error;
+	  throw new IOException(error);
+	}
+	if (batch.end) break;
+	for (int i = 0; i < batch.size; i++) {
+	  aggregate(batch.walks[i]);
+	}
+	batch.release_records();
+	free.put(batch);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      for (Future<Object> task : tasks) {
+	task.cancel(true);
+      }
+      // stop tasks still blocked on the queues after an error;
+      // the threads are reused by the next query
+    }
+
+    for (SplicedReadWalker walker : walkers) {
+      add_broken_counts(walker);
+    }
+  }
+
+  private boolean usable (SAMRecord sr) {
+    if (sr.getReadUnmappedFlag()) return false;
+
+    if (srr.PRIMARY_READ_MODE && sr.getNotPrimaryAlignmentFlag()) return false;
+
+    if (srr.EXCLUDE_DUPLICATES && sr.getDuplicateReadFlag()) return false;
+
+    if (srr.READ_NAME_RESTRICT_MODE &&
+	!(sr.getReadName().equals(srr.READ_NAME_RESTRICT_STRING))) return false;
+
+    return true;
+  }
+
+  private void set_reference (SAMRecord sr) throws IOException {
+    current_reference_i = sr.getReferenceIndex();
+    current_contig_id = srr.bam_contig_ids[current_reference_i];
+    current_reference_name = srr.contigs.get_name(current_contig_id);
+    // standardized, e.g. .bed format requires "chr1", not "1"
+
+    System.err.println("processing reference: " + current_reference_name);  // debug
+
+    load_reference(srr.contigs.get_reference_name(current_contig_id));
+  }
+
+  private void aggregate (SplicedReadWalk walk) throws IOException {
+    //
+    // update junction counters with a walked read.  Must be called in
+    // the original read order, as this also drives flushing.
+    //
+    SAMRecord sr = walk.sr;
+
+    if (deferred) {
+      int start = sr.getAlignmentStart();
+      if (start >= own_start && start <= own_end) {
+	while (frontier.size() > 0 && JunctionTable.get_segment_2_start(frontier.peek()) < start) {
+	  junctions.flush_index[junctions.find(frontier.poll())] = record_count;
+	  // the first read past a junction: single-threaded mode would
+	  // flush it at the next checkpoint from here on
+	}
+	record_count++;
+      }
+      // reads starting before the shard are still needed for
+      // junctions they support in it, but are counted by the
+      // previous shard
+    }
+
+    if (sr.getReferenceIndex() != aggregate_reference_i) {
+      flush_check(true, null);
+      aggregate_reference_i = sr.getReferenceIndex();
+      junctions.contig_id = srr.bam_contig_ids[aggregate_reference_i];
+      junctions.reference_name = srr.contigs.get_name(junctions.contig_id);
+    } else if (++checkpoint % srr.flush_check_interval == 0) {
+      flush_check(false, sr);
+    }
+
+    // CIGAR parsed:
+    // evaluate left and right flanking nt and set QC flag
+
+    int last_junction = walk.junction_count - 1;
+    for (int ji = 0; ji <= last_junction; ji++) {
+      //
+      //  foreach junction supported by read...
+      //
+      int seq1_end = walk.segment_1_end[ji];
+      int seq2_start = walk.segment_2_start[ji];
+      if (seq2_start < own_start || seq2_start > own_end) continue;
+      // owned by another shard
+      int slot = track_site(seq1_end, seq2_start, sr);
+      int left = ji;
+      int right = ji + 1;
+      // flanking segments
+
+      double junk_ratio_l = walk.get_junk_ratio(left);
+      double junk_ratio_r = walk.get_junk_ratio(right);
+
+      //
+      //  debug output for troubleshooting / pipeline QC:
+      //
+      boolean complain_l = srr.JUNK_REPORT &&
+	junk_ratio_l >= srr.JUNK_REPORT_MIN_RATIO_TO_COMPLAIN &&
+	walk.count_aligned_bases[left] >= srr.JUNK_REPORT_MIN_LENGTH_TO_COMPLAIN;
+
+      boolean complain_r = srr.JUNK_REPORT &&
+	junk_ratio_r >= srr.JUNK_REPORT_MIN_RATIO_TO_COMPLAIN &&
+	walk.count_aligned_bases[right] >= srr.JUNK_REPORT_MIN_LENGTH_TO_COMPLAIN;
+
+      if (complain_l || complain_r) {
+
+	System.err.print(junctions.reference_name + ":" + seq1_end + "-" + seq2_start +
+			 " read=" + sr.getReadName() +
+			 " CIGAR=" + sr.getCigar());
+
+	System.err.print(" l_mm_count=" + walk.count_aligned_mismatched_bases[left]);  // debug
+
+	if (complain_l) {
+	  System.err.print(" LEFT:" +
+			   " aligned=" + walk.count_aligned_bases[left] +
+			   " junk=" + walk.get_junk_ratio(left) +
+			   " mm=" + walk.get_junk_ratio_mismatches(left) +
+			   " sc=" + walk.get_junk_ratio_soft_clip(left) +
+			   " indel=" + walk.get_junk_ratio_indel(left)
+			   );
+	}
+	if (complain_r) {
+	  System.err.print(
+			   " RIGHT:" +
+			   " aligned=" + walk.count_aligned_bases[right] +
+			   " junk=" + walk.get_junk_ratio(right) +
+			   " mm=" + walk.get_junk_ratio_mismatches(right) +
+			   " sc=" + walk.get_junk_ratio_soft_clip(right) +
+			   " indel=" + walk.get_junk_ratio_indel(right)
+			   );
+	}
+	System.err.println("");  // debug
+      }
+
+      boolean mapping_perfect = false;
+      boolean mapping_clean = false;
+
+      if (junk_ratio_l == 0 && junk_ratio_r == 0) {
+	mapping_perfect = true;
+	junctions.counter_perfect[slot]++;
+	//	  sri.counter_clean++;
+	// should we also count perfect reads as "clean" (good-enough) reads?
+      } else if (junk_ratio_l <= srr.MAX_JUNK_RATIO_FOR_CLEAN_CALL &&
+		 junk_ratio_r <= srr.MAX_JUNK_RATIO_FOR_CLEAN_CALL) {
+	mapping_clean = true;
+	junctions.counter_clean[slot]++;
+      }
+
+      //	boolean flank_qc = (walk.count_aligned_bases[left] >= MIN_FLANKING_NT_FOR_QC &&
+      //			    walk.count_aligned_bases[right] >= MIN_FLANKING_NT_FOR_QC);
+      boolean flank_qc = get_flank_qc(walk.count_aligned_bases[left], ji == 0) &&
+	get_flank_qc(walk.count_aligned_bases[right], ji == last_junction);
+
+      //	System.err.println(sri.get_name() + " L=" + flank_l + " R=" + flank_r + " qc=" + flank_qc);  // debug
+      if (flank_qc) junctions.counter_flanking_qc[slot]++;
+
+      Reporter rpt_reads = srr.rpt_reads;
+      if (rpt_reads != null) {
+	//
+	// write read-level report for each supported junction:
+	//
+	rpt_reads.set_value("read_name", sr.getReadName());
+	rpt_reads.set_value("strand", sr.getReadNegativeStrandFlag() ? "-" : "+");
+	rpt_reads.set_value("reference", junctions.reference_name);
+	rpt_reads.set_value("junction_start", Integer.toString(seq1_end));
+	rpt_reads.set_value("junction_end", Integer.toString(seq2_start));
+	rpt_reads.set_value("flanking_nt_left", Integer.toString(walk.count_aligned_bases[left]));
+	rpt_reads.set_value("flanking_nt_right", Integer.toString(walk.count_aligned_bases[right]));
+	rpt_reads.set_value("mapping_perfect", mapping_perfect ? "1" : "0");
+	rpt_reads.set_value("mapping_clean", mapping_clean ? "1" : "0");
+
+	boolean usable = true;
+	if (srr.RESTRICT_JUNCTION_START > 0 && seq1_end != srr.RESTRICT_JUNCTION_START) usable = false;
+	if (srr.RESTRICT_JUNCTION_END > 0 && seq2_start != srr.RESTRICT_JUNCTION_END) usable = false;
+
+	if (usable) rpt_reads.end_row();
+      }
+
+    }  // SplicedReadInfo
+  }
+
+  private void load_reference (String reference_name) throws IOException {
+    if (srr.reference_window) {
+      refseq = null;
+      synchronized (srr.reference_sequence) {
+	reference_length = srr.reference_sequence.get_length(reference_name);
+      }
+      if (reference_length == ReferenceSequence.NULL_LENGTH) throw new IOException("can't load reference sequence " + reference_name);
+      // windows are loaded as reads require them
+    } else if (srr.reference_cache != null) {
+      if (loaded_reference != null) srr.reference_cache.release(loaded_reference);
+      loaded_reference = null;
+      refseq = srr.reference_cache.get(reference_name);
+      loaded_reference = reference_name;
+      // shared with other workers processing the same reference,
+      // and in batch mode with other samples
+      if (prefetched_reference != null) {
+	srr.reference_cache.release(prefetched_reference);
+	prefetched_reference = null;
+	// after get(), so if this is the prefetched reference it's kept
+      }
+      if (prefetch) prefetch_next_reference();
+    } else if (srr.reference_sequence != null) {
+      refseq = PackedSequence.load(srr.reference_sequence, reference_name);
+      // FIX ME: may need disambiguation/lookup
+      if (refseq == null) throw new IOException("can't load reference sequence " + reference_name);
+      System.err.println("load reference for " + reference_name + "...done");  // debug
+    }
+  }
+
+  private boolean window_covers (SAMRecord sr) {
+    return !srr.reference_window ||
+      (refseq != null && refseq.covers(sr.getUnclippedStart() - 1, sr.getUnclippedEnd()));
+  }
+
+  private void load_window (SAMRecord sr) throws IOException {
+    int start = sr.getUnclippedStart() - 1 - WINDOW_BEHIND;
+    int end = Math.max(sr.getUnclippedEnd(), start + WINDOW_BASES);
+    String reference_name = srr.contigs.get_reference_name(current_contig_id);
+    refseq = PackedSequence.load_window(srr.reference_sequence, reference_name,
+					reference_length, start, end);
+    if (refseq == null) throw new IOException("can't load reference sequence " + reference_name);
+  }
+
+  private void prefetch_next_reference() {
+    //
+    // start loading the next reference in the BAM header with any
+    // reads, so it's ready when the reads get there.  At most two
+    // references are held: the current one and the next.
+    //
+    int next = current_reference_i + 1;
+    if (sfr.hasIndex()) {
+      BAMIndex index = sfr.indexing().getIndex();
+      while (next < srr.bam_contig_ids.length &&
+	     index.getMetaData(next).getAlignedRecordCount() == 0) {
+	next++;
+      }
+      // skip references without reads; otherwise assume the next has some
+    }
+    if (next < srr.bam_contig_ids.length) {
+      prefetched_reference = srr.contigs.get_reference_name(srr.bam_contig_ids[next]);
+      srr.reference_cache.prefetch(prefetched_reference);
+    }
+  }
+
+  private void flush_check (boolean force, SAMRecord sr) {
+    if (deferred) return;
+    // multi-threaded mode: reporter replays flushes at end of unit
+
+    if (srr.VERBOSE) System.err.println("flush check, size=" + junctions.size());  // debug
+    ArrayList<SplicedReadInfo> to_report;
+    if (force) {
+      to_report = junctions.get_all();
+      junctions.clear();
+      frontier.clear();
+    } else {
+      to_report = new ArrayList<SplicedReadInfo>();
+      int current_start = sr.getAlignmentStart();
+      if (srr.VERBOSE) System.err.println("current start="+current_start);  // debug
+
+      int[] max_s2 = null;
+      int[] second_s2 = null;
+      long[] by_s1 = null;
+      if (srr.SORT) {
+	//
+	// a junction is held if it overlaps any other pending junction.
+	// Sort pending junctions by segment_1_end, tracking the two
+	// largest segment_2_starts so far: another junction overlaps
+	// candidate C if, of those with segment_1_end <= C's
+	// segment_2_start, at least 2 (C and another) have
+	// segment_2_start >= C's segment_1_end.
+	//
+	by_s1 = new long[junctions.size()];
+	int n = 0;
+	for (int slot = 0; slot < junctions.capacity(); slot++) {
+	  if (junctions.is_used(slot)) {
+	    long key = junctions.keys[slot];
+	    by_s1[n++] = ((long) JunctionTable.get_segment_1_end(key) << 32) |
+	      JunctionTable.get_segment_2_start(key);
+	    // segment_1_end in the high bits, so sorting orders by it
+	  }
+	}
+	Arrays.sort(by_s1);
+	max_s2 = new int[n];
+	second_s2 = new int[n];
+	int max = Integer.MIN_VALUE;
+	int second = Integer.MIN_VALUE;
+	for (int i = 0; i < n; i++) {
+	  int s2 = (int) by_s1[i];
+	  if (s2 > max) {
+	    second = max;
+	    max = s2;
+	  } else if (s2 > second) {
+	    second = s2;
+	  }
+	  max_s2[i] = max;
+	  second_s2[i] = second;
+	}
+      }
+
+      LongHeap held = null;
+      while (frontier.size() > 0 &&
+	     JunctionTable.get_segment_2_start(frontier.peek()) < current_start) {
+	//
+	// junctions behind the read frontier, in segment_2_start order
+	//
+	long key = frontier.poll();
+	if (srr.SORT) {
+	  int s1 = JunctionTable.get_segment_1_end(key);
+	  int s2 = JunctionTable.get_segment_2_start(key);
+	  int i = upper_bound_s1(by_s1, s2) - 1;
+	  if (second_s2[i] >= s1) {
+	    // overlaps a still-pending span
+	    if (held == null) held = new LongHeap();
+	    held.add(key);
+	    continue;
+	  }
+	}
+	to_report.add(junctions.get_info(junctions.find(key)));
+      }
+      if (held != null) {
+	while (held.size() > 0) {
+	  frontier.add(held.poll());
+	}
+      }
+
+      for (SplicedReadInfo sri : to_report) {
+	junctions.remove(JunctionTable.get_key(sri.segment_1_end, sri.segment_2_start));
+      }
+    }
+
+    srr.write_junctions(to_report);
+  }
+
+  private static int upper_bound_s1 (long[] by_s1, int s1) {
+    // index of the first entry with segment_1_end > s1
+    int lo = 0;
+    int hi = by_s1.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if ((int) (by_s1[mid] >> 32) <= s1) {
+	lo = mid + 1;
+      } else {
+	hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int track_site (int seq1_end, int seq2_start, SAMRecord sr) {
+    if (srr.VERBOSE) System.err.println("tracking " + junctions.reference_name + " " + seq1_end + " " + seq2_start + " read="+sr.getReadName());  // debug
+
+    long key = JunctionTable.get_key(seq1_end, seq2_start);
+    int slot = junctions.add(key);
+    if (junctions.counter[slot] == 0) frontier.add(key);
+    // new junction
+    junctions.counter[slot]++;
+
+    if (sr.getReadNegativeStrandFlag()) {
+      junctions.counter_minus[slot]++;
+    } else {
+      junctions.counter_plus[slot]++;
+    }
+
+    return slot;
+  }
+
+  private boolean get_flank_qc (int count_aligned_bases, boolean is_read_edge) {
+
+    return count_aligned_bases >= (is_read_edge ?
+				      srr.QC_MIN_FLANKING_NT_READ_EDGE : srr.QC_MIN_FLANKING_NT_INTERNAL);
+    // if the sequence flanking the junction abuts a read edge,
+    // use a more stringent check
+  }
+
+}
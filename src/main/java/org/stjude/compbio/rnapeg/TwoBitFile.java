@@ -89,6 +89,11 @@ public class TwoBitFile implements ReferenceSequence {
     return true;
   }
 
+  public boolean supports_concurrent_access() {
+    return false;
+    // shared file pointer
+  }
+
   public ArrayList<String> get_sequence_names() {
     return tbh.get_sequence_names();
   }
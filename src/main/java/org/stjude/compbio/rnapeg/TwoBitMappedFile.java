@@ -0,0 +1,284 @@
+package org.stjude.compbio.rnapeg;
+// .2bit files: http://genome.ucsc.edu/FAQ/FAQformat#format7
+// memory-mapped reader: the file index is parsed when opened, and
+// each sequence record header (N and mask blocks) the first time the
+// sequence is used.  Bases are decoded directly from the mapping.
+// Records are immutable once parsed, so get_region() and get_all()
+// need no locking and may be called from any number of threads.
+// No file handles are held open.
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TwoBitMappedFile implements ReferenceSequence {
+  static final int TWOBIT_SIGNATURE = 0x1A412743;
+
+  private static final byte[] BASES = { 'T', 'C', 'A', 'G' };
+  // 2-bit codes
+  private static final byte[] DECODE = new byte[256 * 4];
+  // packed byte => its 4 bases
+  static {
+    for (int i = 0; i < 256; i++) {
+      for (int j = 0; j < 4; j++) {
+	DECODE[i * 4 + j] = BASES[(i >> (6 - j * 2)) & 3];
+      }
+    }
+  }
+  private static final int CHUNK_SIZE = 65536;
+  // packed bytes copied from the mapping at a time
+
+  final MappedFile mf;
+  private final boolean big_endian;
+  private final List<String> names;
+  // in file order
+  private final Map<String,Long> offsets;
+  // record offset for each sequence name
+  private final ConcurrentHashMap<String,TwoBitRecord> records;
+  // parsed on demand
+  private final ChromosomeDisambiguator cd;
+  private final ConcurrentHashMap<String,String> lookups;
+  // sequence name requested => name in file ("" if not present)
+
+  public TwoBitMappedFile (String filename) throws IOException {
+    this(new File(filename));
+  }
+
+  public TwoBitMappedFile (File file) throws IOException {
+    mf = new MappedFile(file);
+
+    if (mf.read_int(0, false) == TWOBIT_SIGNATURE) {
+      big_endian = false;
+    } else if (mf.read_int(0, true) == TWOBIT_SIGNATURE) {
+      big_endian = true;
+    } else {
+      throw new IOException("can't find .2bit signature in " + file);
+    }
+    int version = read_int(4);
+    if (version != 0) throw new IOException("nonzero .2bit version " + version + " in " + file);
+    int sequence_count = read_int(8);
+
+    ArrayList<String> names = new ArrayList<String>(sequence_count);
+    HashMap<String,Long> offsets = new HashMap<String,Long>();
+    long pos = 16;
+    for (int i = 0; i < sequence_count; i++) {
+      int len = mf.get(pos++) & 0xff;
+      byte[] buf = new byte[len];
+      for (int j = 0; j < len; j++) {
+	buf[j] = mf.get(pos++);
+      }
+      String name = new String(buf);
+      long offset = read_int(pos) & 0xffffffffL;
+      pos += 4;
+      names.add(name);
+      offsets.put(name, offset);
+    }
+    this.names = Collections.unmodifiableList(names);
+    this.offsets = Collections.unmodifiableMap(offsets);
+    records = new ConcurrentHashMap<String,TwoBitRecord>();
+    cd = new ChromosomeDisambiguator(names);
+    lookups = new ConcurrentHashMap<String,String>();
+  }
+
+  private TwoBitRecord read_record (String name, long offset) {
+    long pos = offset;
+    int length = read_int(pos);
+    pos += 4;
+
+    int n_count = read_int(pos);
+    pos += 4;
+    int[] n_starts = read_int_set(pos, n_count);
+    pos += n_count * 4L;
+    int[] n_sizes = read_int_set(pos, n_count);
+    pos += n_count * 4L;
+
+    int mask_count = read_int(pos);
+    pos += 4;
+    int[] mask_starts = read_int_set(pos, mask_count);
+    pos += mask_count * 4L;
+    int[] mask_sizes = read_int_set(pos, mask_count);
+    pos += mask_count * 4L;
+
+    pos += 4;
+    // reserved
+
+    return new TwoBitRecord(name, length, n_starts, n_sizes, mask_starts, mask_sizes, pos);
+  }
+
+  public TwoBitRecord get_record (String sequence_name) {
+    //
+    // record for a sequence, allowing for naming differences
+    // (e.g. "chr1" vs. "1"); null if not present
+    //
+    String key = lookups.get(sequence_name);
+    if (key == null) {
+      key = "";
+      for (String alt : SAMUtils.get_refname_alternates(sequence_name)) {
+	if (offsets.containsKey(alt)) {
+	  key = alt;
+	  break;
+	}
+      }
+      if (key.length() == 0) {
+	String found = cd.find(sequence_name);
+	if (found != null) key = found;
+      }
+      lookups.put(sequence_name, key);
+    }
+    if (key.length() == 0) return null;
+
+    TwoBitRecord r = records.get(key);
+    if (r == null) {
+      r = read_record(key, offsets.get(key));
+      TwoBitRecord other = records.putIfAbsent(key, r);
+      if (other != null) r = other;
+      // parsed concurrently by another thread
+    }
+    return r;
+  }
+
+  public byte[] get_region (String sequence_name, int start_base, int length) throws IOException {
+    TwoBitRecord r = get_record(sequence_name);
+    if (r == null) return null;
+    if (start_base < 1 || length < 0 || (long) start_base - 1 + length > r.length) {
+      throw new IOException("region " + sequence_name + ":" + start_base + " length " + length + " outside sequence of length " + r.length);
+    }
+    return decode(r, start_base - 1, length);
+  }
+
+  public PackedSequence get_packed (String sequence_name) {
+    //
+    // sequence as stored, without decoding; null if not present
+    //
+    TwoBitRecord r = get_record(sequence_name);
+    return r == null ? null : get_packed(r, 0, r.length);
+  }
+
+  public PackedSequence get_packed (String sequence_name, int start, int end) {
+    //
+    // window from 0-based start (a multiple of 4) to end
+    //
+    TwoBitRecord r = get_record(sequence_name);
+    return r == null ? null : get_packed(r, start, end);
+  }
+
+  private PackedSequence get_packed (TwoBitRecord r, int start, int end) {
+    byte[] packed = new byte[(end - start + 3) >> 2];
+    mf.read(r.packed_offset + (start >> 2), packed, 0, packed.length);
+    return new PackedSequence(r.name, r.length, start, packed, r.n_starts, r.n_ends);
+    // ambiguous runs of the whole sequence: positions are absolute
+  }
+
+  public byte[] get_all (String sequence_name) throws IOException {
+    TwoBitRecord r = get_record(sequence_name);
+    return r == null ? null : decode(r, 0, r.length);
+  }
+
+  public int get_length (String sequence_name) throws IOException {
+    TwoBitRecord r = get_record(sequence_name);
+    return r == null ? ReferenceSequence.NULL_LENGTH : r.length;
+  }
+
+  public boolean supports_sequence_list() {
+    return true;
+  }
+
+  public boolean supports_concurrent_access() {
+    return true;
+  }
+
+  public ArrayList<String> get_sequence_names() {
+    return new ArrayList<String>(names);
+  }
+
+  private byte[] decode (TwoBitRecord r, int start, int length) {
+    //
+    // bases from 0-based start, with N and mask blocks applied
+    //
+    byte[] buf = new byte[length];
+    if (length == 0) return buf;
+
+    int end = start + length;
+    long packed_start = r.packed_offset + (start >> 2);
+    int packed_length = ((end - 1) >> 2) - (start >> 2) + 1;
+    byte[] packed = new byte[Math.min(packed_length, CHUNK_SIZE)];
+
+    int i = 0;
+    int skip = start & 3;
+    // bases to skip in the first packed byte
+    for (int done = 0; done < packed_length; ) {
+      int n = Math.min(packed.length, packed_length - done);
+      mf.read(packed_start + done, packed, 0, n);
+      for (int p = 0; p < n; p++) {
+	int d = (packed[p] & 0xff) << 2;
+	if (skip == 0 && length - i >= 4) {
+	  buf[i] = DECODE[d];
+	  buf[i + 1] = DECODE[d + 1];
+	  buf[i + 2] = DECODE[d + 2];
+	  buf[i + 3] = DECODE[d + 3];
+	  i += 4;
+	} else {
+	  for (int j = skip; j < 4 && i < length; j++) {
+	    buf[i++] = DECODE[d + j];
+	  }
+	  skip = 0;
+	}
+      }
+      done += n;
+    }
+
+    apply_blocks(r.n_starts, r.n_ends, buf, start, false);
+    apply_blocks(r.mask_starts, r.mask_ends, buf, start, true);
+    return buf;
+  }
+
+  private static void apply_blocks (int[] starts, int[] ends, byte[] buf, int start, boolean mask) {
+    //
+    // apply only the blocks overlapping the region
+    //
+    int end = start + buf.length;
+    for (int i = TwoBitRecord.first_block(ends, start); i < starts.length && starts[i] < end; i++) {
+      int from = Math.max(starts[i], start) - start;
+      int to = Math.min(ends[i], end) - start;
+      if (mask) {
+	for (int j = from; j < to; j++) {
+	  buf[j] = (byte) Character.toLowerCase((char) buf[j]);
+	}
+      } else {
+	Arrays.fill(buf, from, to, (byte) 'N');
+      }
+    }
+  }
+
+  private int read_int (long pos) {
+    return mf.read_int(pos, big_endian);
+  }
+
+  private int[] read_int_set (long pos, int count) {
+    int[] set = new int[count];
+    for (int i = 0; i < count; i++, pos += 4) {
+      set[i] = read_int(pos);
+    }
+    return set;
+  }
+
+  public static void main (String[] argv) {
+    //
+    // TwoBitMappedFile FILE.2bit CHR [START LENGTH]
+    //
+    try {
+      TwoBitMappedFile tbf = new TwoBitMappedFile(argv[0]);
+      byte[] seq;
+      if (argv.length == 4) {
+	seq = tbf.get_region(argv[1], Integer.parseInt(argv[2]), Integer.parseInt(argv[3]));
+      } else {
+	seq = tbf.get_all(argv[1]);
+      }
+      System.out.println(seq == null ? "not found" : new String(seq));  // debug
+    } catch (Exception e) {
+      System.err.println("ERROR: " + e);  // debug
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package org.stjude.compbio.rnapeg;
+// .2bit files: http://genome.ucsc.edu/FAQ/FAQformat#format7
+// parsed sequence record header for TwoBitMappedFile: length,
+// N and mask blocks, and location of the packed DNA.
+// Immutable once constructed, so may be shared between threads.
+
+import java.util.*;
+
+public class TwoBitRecord {
+  final String name;
+  final int length;
+  final int[] n_starts, n_ends;
+  final int[] mask_starts, mask_ends;
+  // blocks: 0-based start and end (exclusive), sorted and merged so
+  // that both starts and ends are increasing
+  final long packed_offset;
+  // file offset of the packed DNA
+
+  public TwoBitRecord (String name, int length,
+		       int[] n_starts, int[] n_sizes,
+		       int[] mask_starts, int[] mask_sizes,
+		       long packed_offset) {
+    // blocks as stored in the file: start and size
+    this.name = name;
+    this.length = length;
+    int[][] n = merge_blocks(n_starts, n_sizes);
+    this.n_starts = n[0];
+    this.n_ends = n[1];
+    int[][] mask = merge_blocks(mask_starts, mask_sizes);
+    this.mask_starts = mask[0];
+    this.mask_ends = mask[1];
+    this.packed_offset = packed_offset;
+  }
+
+  public static int first_block (int[] ends, int start) {
+    //
+    // index of the first block ending after 0-based start
+    // (ends.length if none)
+    //
+    int lo = 0;
+    int hi = ends.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ends[mid] <= start) {
+	lo = mid + 1;
+      } else {
+	hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static int[][] merge_blocks (int[] starts, int[] sizes) {
+    //
+    // blocks are normally sorted and disjoint already, but don't
+    // rely on it for the binary search
+    //
+    int count = starts.length;
+    long[] blocks = new long[count];
+    for (int i = 0; i < count; i++) {
+      blocks[i] = ((long) starts[i] << 32) | (sizes[i] & 0xffffffffL);
+    }
+    Arrays.sort(blocks);
+
+    int[] merged_starts = new int[count];
+    int[] merged_ends = new int[count];
+    int merged = 0;
+    for (int i = 0; i < count; i++) {
+      int start = (int) (blocks[i] >> 32);
+      int end = start + (int) blocks[i];
+      if (end <= start) continue;
+      if (merged > 0 && start <= merged_ends[merged - 1]) {
+	if (end > merged_ends[merged - 1]) merged_ends[merged - 1] = end;
+      } else {
+	merged_starts[merged] = start;
+	merged_ends[merged] = end;
+	merged++;
+      }
+    }
+    return new int[][] {
+      Arrays.copyOf(merged_starts, merged),
+      Arrays.copyOf(merged_ends, merged)
+    };
+  }
+
+  public String get_name() {
+    return name;
+  }
+
+  public int get_length() {
+    return length;
+  }
+
+}
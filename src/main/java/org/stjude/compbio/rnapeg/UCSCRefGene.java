@@ -1,6 +1,7 @@
 package org.stjude.compbio.rnapeg;
 // FIX ME: move ENSEMBL transcript->gene lookup here, make an option
 
+import java.nio.charset.*;
 import java.util.*;
 
 public class UCSCRefGene {
@@ -96,19 +97,160 @@ public class UCSCRefGene {
 	exonFrames = parse_int_range(fields[i++]);
       }
 
-      if (fields.length == 11 && name.indexOf(".") > 0) {
-	// AceView: gene name embedded in transcript name
-	String[] f = name.split("\\.");
-	if (f.length == 2) {
-	  name2 = new String(f[0]);
-	}
-      }
+      if (fields.length == 11) patch_aceview();
 
     } else {
       System.err.println("ERROR: unknown format, expected 16 fields, has " + fields.length);  // debug
     }
   }
 
+  private void patch_aceview() {
+    if (name.indexOf(".") > 0) {
+      // AceView: gene name embedded in transcript name
+      String[] f = name.split("\\.");
+      if (f.length == 2) {
+	name2 = new String(f[0]);
+      }
+    }
+  }
+
+  private static final long NOT_PLAIN = Long.MIN_VALUE;
+  // parse_bytes(): field needs parse_string()'s Integer.parseInt()
+
+  boolean parse_bytes (byte[] buf, int start, int end) {
+    //
+    // fast path for parse_string(), for a line (without terminator)
+    // in a byte buffer: fields are tokenized in place, and numbers
+    // parsed without intermediate Strings.  Returns false, having set
+    // nothing, for any line parse_string() might treat differently
+    // (non-ASCII text, unusual number formats, unknown layouts, which
+    // parse_string() also reports).
+    //
+    int[] bounds = new int[18];
+    // field i is bounds[i] to bounds[i + 1] - 1 (excluding the tab)
+    int count = 0;
+    bounds[0] = start;
+    for (int i = start; i < end; i++) {
+      byte b = buf[i];
+      if (b < 0) return false;
+      // non-ASCII: leave decoding to parse_string()
+      if (b == '\t') {
+	if (++count > 16) return false;
+	bounds[count] = i + 1;
+      }
+    }
+    bounds[++count] = end + 1;
+    while (count > 0 && bounds[count] - bounds[count - 1] == 1) {
+      count--;
+    }
+    // as String.split(), ignore trailing empty fields
+    if (count != 16 && count != 11 && count != 13) return false;
+
+    long[] ints = new long[8];
+    int[][] ranges = new int[3][];
+    ints[0] = forgiving_parse_int(buf, bounds[0], bounds[1] - 1);
+    for (int i = 0; i < 5; i++) {
+      ints[i + 1] = parse_plain_int(buf, bounds[i + 4], bounds[i + 5] - 1);
+    }
+    ranges[0] = parse_int_range(buf, bounds[9], bounds[10] - 1);
+    ranges[1] = parse_int_range(buf, bounds[10], bounds[11] - 1);
+    if (count >= 13) ints[6] = forgiving_parse_int(buf, bounds[11], bounds[12] - 1);
+    if (count >= 16) ranges[2] = parse_int_range(buf, bounds[15], bounds[16] - 1);
+    for (long v : ints) {
+      if (v == NOT_PLAIN) return false;
+    }
+    if (ranges[0] == null || ranges[1] == null || (count >= 16 && ranges[2] == null)) return false;
+
+    bin = (int) ints[0];
+    name = get_string(buf, bounds[1], bounds[2] - 1);
+    chrom = get_string(buf, bounds[2], bounds[3] - 1);
+    strand = get_string(buf, bounds[3], bounds[4] - 1);
+    txStart = (int) ints[1];
+    txEnd = (int) ints[2];
+    cdsStart = (int) ints[3];
+    cdsEnd = (int) ints[4];
+    exonCount = (int) ints[5];
+    exonStarts = ranges[0];
+    exonEnds = ranges[1];
+    if (count >= 13) {
+      score = (int) ints[6];
+      name2 = get_string(buf, bounds[12], bounds[13] - 1);
+    }
+    if (count >= 16) {
+      cdsStartStat = get_string(buf, bounds[13], bounds[14] - 1);
+      cdsEndStat = get_string(buf, bounds[14], bounds[15] - 1);
+      exonFrames = ranges[2];
+    }
+    if (count == 11) patch_aceview();
+    return true;
+  }
+
+  private static String get_string (byte[] buf, int start, int end) {
+    return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+    // ASCII only (checked), so same as the platform charset
+  }
+
+  private static long parse_plain_int (byte[] buf, int start, int end) {
+    //
+    // an optional '-' and up to 9 digits; otherwise NOT_PLAIN
+    //
+    boolean negative = start < end && buf[start] == '-';
+    int i = negative ? start + 1 : start;
+    if (i == end || end - i > 9) return NOT_PLAIN;
+    long v = 0;
+    for (; i < end; i++) {
+      int d = buf[i] - '0';
+      if (d < 0 || d > 9) return NOT_PLAIN;
+      v = v * 10 + d;
+    }
+    return negative ? -v : v;
+  }
+
+  private static long forgiving_parse_int (byte[] buf, int start, int end) {
+    //
+    // as forgiving_parse_int(String, -1)
+    //
+    if (start == end) return -1;
+    long v = parse_plain_int(buf, start, end);
+    if (v != NOT_PLAIN) return v;
+    int i = buf[start] == '-' || buf[start] == '+' ? start + 1 : start;
+    if (i == end) return -1;
+    for (; i < end; i++) {
+      if (buf[i] < '0' || buf[i] > '9') return -1;
+      // not a number at all
+    }
+    return NOT_PLAIN;
+    // e.g. leading '+' or many digits: Integer.parseInt() decides
+  }
+
+  private static int[] parse_int_range (byte[] buf, int start, int end) {
+    //
+    // as parse_int_range(String); null if not plain
+    //
+    if (start == end) return null;
+    while (end > start && buf[end - 1] == ',') {
+      end--;
+    }
+    // String.split() ignores trailing empty fields
+    if (start == end) return new int[0];
+    int count = 1;
+    for (int i = start; i < end; i++) {
+      if (buf[i] == ',') count++;
+    }
+    int[] results = new int[count];
+    int field_start = start;
+    int n = 0;
+    for (int i = start; i <= end; i++) {
+      if (i == end || buf[i] == ',') {
+	long v = parse_plain_int(buf, field_start, i);
+	if (v == NOT_PLAIN) return null;
+	results[n++] = (int) v;
+	field_start = i + 1;
+      }
+    }
+    return results;
+  }
+
   public void parse(HashMap<String,String> row) {
     // FIX ME: style points for populating via Reflection!
     bin = Integer.parseInt(row.get("bin"));
@@ -0,0 +1,185 @@
+package org.stjude.compbio.rnapeg;
+// parse a refGene/refFlat flatfile in parallel: the file is read into
+// memory (decompressing if .gz) and split into line-aligned chunks,
+// which are parsed on the common fork/join pool with
+// UCSCRefGene.parse_bytes().  Records are returned in file order,
+// with a limited number of chunks parsed ahead.
+//
+// Lines parse_bytes() can't handle are given to UCSCRefGene's
+// String constructor, as UCSCRefGeneReader would, so results are
+// the same either way.
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class UCSCRefGeneChunkParser implements Iterator<UCSCRefGene> {
+  private static final int CHUNK_BYTES = 1 << 20;
+
+  private final byte[] buf;
+  private final int length;
+  private int next_chunk = 0;
+  // start of the next chunk to submit
+  private final int max_pending;
+  private final ArrayDeque<ForkJoinTask<ArrayList<UCSCRefGene>>> pending;
+  private ArrayList<UCSCRefGene> current = null;
+  private int current_i = 0;
+
+  public UCSCRefGeneChunkParser (File f) throws IOException {
+    InputStream is = new FileInputStream(f);
+    String fn = f.getName();
+    if (fn.toLowerCase().indexOf(".gz") == fn.length() - 3) is = new GZIPInputStream(is);
+    // as FileUtils.getUniversalBufferedReader()
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(is instanceof GZIPInputStream ? 1 << 20 : (int) f.length());
+    try {
+      byte[] block = new byte[1 << 16];
+      int n;
+      while ((n = is.read(block)) > 0) {
+	bytes.write(block, 0, n);
+      }
+    } finally {
+      is.close();
+    }
+    buf = bytes.toByteArray();
+    length = buf.length;
+    max_pending = ForkJoinPool.commonPool().getParallelism() * 2;
+    pending = new ArrayDeque<ForkJoinTask<ArrayList<UCSCRefGene>>>();
+  }
+
+  private void submit_chunks() {
+    while (pending.size() < max_pending && next_chunk < length) {
+      final int start = next_chunk;
+      int end = Math.min(start + CHUNK_BYTES, length);
+      while (end < length && buf[end - 1] != '\n') {
+	end++;
+      }
+      // chunks end after a newline (or at end of file)
+      next_chunk = end;
+      final int chunk_end = end;
+      pending.add(ForkJoinPool.commonPool().submit(new Callable<ArrayList<UCSCRefGene>>() {
+	  public ArrayList<UCSCRefGene> call() {
+	    return parse_chunk(start, chunk_end);
+	  }
+	}));
+    }
+  }
+
+  private ArrayList<UCSCRefGene> parse_chunk (int start, int end) {
+    ArrayList<UCSCRefGene> results = new ArrayList<UCSCRefGene>();
+    int line_start = start;
+    while (line_start < end) {
+      int line_end = line_start;
+      while (line_end < end && buf[line_end] != '\n') {
+	line_end++;
+      }
+      int next_line = line_end + 1;
+      if (line_end > line_start && buf[line_end - 1] == '\r') line_end--;
+      // CRLF
+
+      boolean cr = false;
+      for (int i = line_start; i < line_end; i++) {
+	if (buf[i] == '\r') cr = true;
+      }
+
+      if (cr) {
+	//
+	// other carriage returns are line breaks for BufferedReader
+	//
+	BufferedReader br = new BufferedReader(new StringReader(new String(buf, line_start, line_end - line_start, Charset.defaultCharset())));
+	try {
+	  String line;
+	  while ((line = br.readLine()) != null) {
+	    results.add(new UCSCRefGene(line));
+	  }
+	} catch (IOException e) {
+	  throw new UncheckedIOException(e);
+	  // can't happen for a StringReader
+	}
+      } else {
+	UCSCRefGene rg = new UCSCRefGene();
+	if (line_end == line_start || !rg.parse_bytes(buf, line_start, line_end)) {
+	  rg = new UCSCRefGene(new String(buf, line_start, line_end - line_start, Charset.defaultCharset()));
+	  // platform charset, as InputStreamReader
+	}
+	results.add(rg);
+      }
+      line_start = next_line;
+    }
+    return results;
+  }
+
+  public boolean hasNext() {
+    while (current == null || current_i >= current.size()) {
+      submit_chunks();
+      if (pending.isEmpty()) return false;
+      try {
+	current = pending.poll().get();
+      } catch (InterruptedException e) {
+	throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+	Throwable cause = e.getCause();
+	if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+	throw new RuntimeException(cause);
+      }
+      current_i = 0;
+    }
+    return true;
+  }
+
+  public UCSCRefGene next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    return current.get(current_i++);
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  public static void main (String[] argv) {
+    //
+    // UCSCRefGeneChunkParser FILE: compare with UCSCRefGeneReader
+    //
+    try {
+      long start = System.currentTimeMillis();
+      ArrayList<UCSCRefGene> serial = new ArrayList<UCSCRefGene>();
+      for (UCSCRefGene rg : new UCSCRefGeneReader(argv[0])) {
+	serial.add(rg);
+      }
+      System.err.println("serial: " + serial.size() + " records, " + (System.currentTimeMillis() - start) + " ms");  // debug
+
+      start = System.currentTimeMillis();
+      UCSCRefGeneChunkParser p = new UCSCRefGeneChunkParser(new File(argv[0]));
+      int i = 0;
+      int different = 0;
+      while (p.hasNext()) {
+	UCSCRefGene rg = p.next();
+	UCSCRefGene other = i < serial.size() ? serial.get(i) : null;
+	if (other == null ||
+	    !Objects.equals(rg.name, other.name) ||
+	    !Objects.equals(rg.name2, other.name2) ||
+	    !Objects.equals(rg.chrom, other.chrom) ||
+	    !Objects.equals(rg.strand, other.strand) ||
+	    rg.bin != other.bin || rg.score != other.score ||
+	    rg.txStart != other.txStart || rg.txEnd != other.txEnd ||
+	    rg.cdsStart != other.cdsStart || rg.cdsEnd != other.cdsEnd ||
+	    rg.exonCount != other.exonCount ||
+	    !Arrays.equals(rg.exonStarts, other.exonStarts) ||
+	    !Arrays.equals(rg.exonEnds, other.exonEnds) ||
+	    !Arrays.equals(rg.exonFrames, other.exonFrames) ||
+	    !Objects.equals(rg.cdsStartStat, other.cdsStartStat) ||
+	    !Objects.equals(rg.cdsEndStat, other.cdsEndStat)) {
+	  different++;
+	}
+	i++;
+      }
+      if (i != serial.size()) different++;
+      System.err.println("chunked: " + i + " records, " + (System.currentTimeMillis() - start) + " ms, different=" + different);  // debug
+    } catch (Exception e) {
+      System.err.println("ERROR: " + e);  // debug
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -8,6 +8,8 @@ public class UCSCRefGeneReader implements Iterator,Iterable<UCSCRefGene> {
   BufferedReader br;
   String next_line;
   HashMap<String,String> transcript2gene = null;
+  UCSCRefGeneChunkParser chunks = null;
+  // if parsing in parallel
 
   public UCSCRefGeneReader(String file) throws FileNotFoundException,IOException {
     br = FileUtils.getUniversalBufferedReader(file);
@@ -18,6 +20,17 @@ public class UCSCRefGeneReader implements Iterator,Iterable<UCSCRefGene> {
     br = FileUtils.getUniversalBufferedReader(file);
     next_line = null;
   }
+
+  public UCSCRefGeneReader(String file, boolean parallel) throws FileNotFoundException,IOException {
+    // parallel: parse chunks of the file on the fork/join pool
+    // (see UCSCRefGeneChunkParser); records are the same
+    if (parallel) {
+      chunks = new UCSCRefGeneChunkParser(new File(file));
+    } else {
+      br = FileUtils.getUniversalBufferedReader(file);
+    }
+    next_line = null;
+  }
   
   public void parse (String file) throws FileNotFoundException,IOException {
     UCSCRefGene rg;
@@ -29,6 +42,7 @@ public class UCSCRefGeneReader implements Iterator,Iterable<UCSCRefGene> {
 
   // begin Iterator stub
   public boolean hasNext() {
+    if (chunks != null) return chunks.hasNext();
     if (next_line == null) try {
 	next_line = br.readLine();
       } catch (Exception e) {
@@ -42,7 +56,11 @@ public class UCSCRefGeneReader implements Iterator,Iterable<UCSCRefGene> {
     UCSCRefGene rg = null;
     if (hasNext()) {
       // have a line to parse
-      rg = new UCSCRefGene(next_line);
+      if (chunks != null) {
+	rg = chunks.next();
+      } else {
+	rg = new UCSCRefGene(next_line);
+      }
       if (transcript2gene != null) {
 	String lookup = transcript2gene.get(rg.name);
 	if (lookup == null) {
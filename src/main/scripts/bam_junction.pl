@@ -55,6 +55,19 @@ GetOptions(
 	   "-strand=s",
 	   "-ignore-incompatible",
 	   "-no-config",
+	   "-threads=i",
+	   "-shard-size=i",
+	   "-walk-threads=i",
+	   # multi-threaded extraction
+
+	   "-batch=s",
+	   # write BAM/outfile list to this file and process all BAMs
+	   # in a single java process, sharing gene models and reference
+	   "-sample-threads=i",
+	   # batch mode: number of BAMs to process concurrently
+	   "-matrix=s",
+	   # batch mode: write a cohort junction x sample matrix
+	   # to this file instead of a junctions file per BAM
 	  );
 
 my $NO_CONFIG_MODE = $FLAGS{"no-config"};
@@ -115,6 +128,7 @@ if (my $bam = $FLAGS{bam}) {
 }
 
 my %outfiles;
+my @batch;
 foreach my $bam (@{$files}) {
   die "where is $bam" unless -s $bam;
   my $outfile;
@@ -128,11 +142,44 @@ foreach my $bam (@{$files}) {
     $outfiles{$outfile} = $bam;
   }
 
+  if ($FLAGS{batch}) {
+    push @batch, [ $bam, $outfile ];
+  } else {
+    run_extraction(sprintf("-bam %s -of %s", $bam, $outfile), [ $outfile ]);
+  }
+}
+
+die "-matrix requires -batch" if $FLAGS{matrix} and !$FLAGS{batch};
+if (@batch) {
+  my $list_file = $FLAGS{batch};
+  my $matrix = $FLAGS{matrix};
+  open(BATCH, ">", $list_file) || die "can't write $list_file";
+  foreach my $row (@batch) {
+    if ($matrix) {
+      # sample names default to BAM filename
+      printf BATCH "%s\n", $row->[0];
+    } else {
+      printf BATCH "%s\n", join "\t", @{$row};
+    }
+  }
+  close BATCH;
+
+  my $cl = sprintf "-bam-list %s", $list_file;
+  $cl .= sprintf " -sample-threads %d", $FLAGS{"sample-threads"} if $FLAGS{"sample-threads"};
+  $cl .= sprintf " -matrix %s", $matrix if $matrix;
+  run_extraction($cl, $matrix ? [ $matrix ] : [ map {$_->[1]} @batch ], 1);
+}
+
+sub run_extraction {
+  my ($cl, $outfiles, $batch) = @_;
+  my $outfile = $outfiles->[$#$outfiles];
+  # for batch mode, the last sample's outfile
+
   my $jr = new JavaRun();
-  $jr->ram("5g");
+  $jr->ram($batch ? "8g" : "5g");
+  # batch mode retains reference sequences for later samples
   $jr->classname("org.stjude.compbio.rnapeg.SplicedReadReporter");
 
-  my $cl = sprintf "-bam %s -of %s", $bam, $outfile;
   if ($type eq "novel" or
       $type eq "reference" or
       $FLAGS{annotate} or
@@ -173,6 +220,9 @@ foreach my $bam (@{$files}) {
     $cl .= sprintf ' -region %s', $r;
   }
   $cl .= " -ignore-incompatible" if $FLAGS{"ignore-incompatible"};
+  $cl .= sprintf " -threads %d", $FLAGS{threads} if $FLAGS{threads};
+  $cl .= sprintf " -shard-size %d", $FLAGS{"shard-size"} if $FLAGS{"shard-size"};
+  $cl .= sprintf " -walk-threads %d", $FLAGS{"walk-threads"} if $FLAGS{"walk-threads"};
 
   my $cmd = $jr->run(
 		     "-command" => $cl,
@@ -180,7 +230,7 @@ foreach my $bam (@{$files}) {
 		    );
 
   if ($FLAGS{now}) {
-    if (-s $outfile and !$FORCE) {
+    if (!$FORCE and !grep {!-s $_} @{$outfiles}) {
       print STDERR "skipping, $outfile\n";
     } else {
       print STDERR "$cmd\n";
@@ -194,8 +244,9 @@ foreach my $bam (@{$files}) {
     $c->node_class("");
     # disable idataplex requirement
 
-    $c->memory_reserve_mb(8000);
-    $c->memory_limit_mb(8000);
+    my $memory = $batch ? 12000 : 8000;
+    $c->memory_reserve_mb($memory);
+    $c->memory_limit_mb($memory);
     $c->outfile($outfile);
     $c->project("PCGP");
     $c->command($cmd);